@@ -2,34 +2,80 @@ package controllers.press;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import play.exceptions.UnexpectedException;
+import play.libs.F;
+import play.libs.MimeTypes;
 import play.mvc.Controller;
+import play.mvc.Http.Header;
+import play.mvc.results.RenderBinary;
 import play.vfs.VirtualFile;
+import press.BundleCache;
+import press.BundleManifest;
+import press.ByteBufferInputStream;
 import press.CSSCompressor;
+import press.CompressionProfile;
+import press.Compressor;
 import press.JSCompressor;
 import press.PluginConfig;
+import press.PressMetrics;
+import press.ServerTiming;
 
 public class Press extends Controller {
+    // Cache-Control for urls that include the version of the content
+    static final String CACHE_CONTROL_VERSIONED = "public, max-age=31536000, immutable";
+
+    // Cache-Control for urls whose content may change: the browser must
+    // revalidate its copy, which is cheap because it gets a 304 response
+    static final String CACHE_CONTROL_UNVERSIONED = "no-cache";
+
+    static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
 
     public static void getCompressedJS(String key) {
-        VirtualFile compressedFile = JSCompressor.getCompressedFile(key);
+        long stamp = BundleCache.getStamp();
+
+        // If the file needs to be generated, suspend the request until it
+        // has been, so that the request thread is free in the meantime
+        F.Promise<VirtualFile> generated = JSCompressor.getCompressedFileAsync(key);
+        VirtualFile compressedFile;
+        if (generated.isDone()) {
+            compressedFile = Compressor.getGenerated(generated);
+        } else {
+            long start = ServerTiming.start();
+            compressedFile = await(generated);
+            ServerTiming.record(ServerTiming.Phase.GENERATE, start);
+        }
         if (compressedFile == null) {
             renderBadResponse("JavaScript");
         }
 
-        renderBinary(compressedFile.getRealFile());
+        renderCompressedFile(compressedFile, stamp);
     }
 
     public static void getCompressedCSS(String key) {
-        VirtualFile compressedFile = CSSCompressor.getCompressedFile(key);
+        long stamp = BundleCache.getStamp();
+        F.Promise<VirtualFile> generated = CSSCompressor.getCompressedFileAsync(key);
+        VirtualFile compressedFile;
+        if (generated.isDone()) {
+            compressedFile = Compressor.getGenerated(generated);
+        } else {
+            long start = ServerTiming.start();
+            compressedFile = await(generated);
+            ServerTiming.record(ServerTiming.Phase.GENERATE, start);
+        }
         if (compressedFile == null) {
             renderBadResponse("CSS");
         }
 
-        renderBinary(compressedFile.getRealFile());
+        renderCompressedFile(compressedFile, stamp);
     }
 
     public static void clearJSCache() {
@@ -50,7 +96,196 @@ public class Press extends Controller {
         renderText("Cleared " + files.size() + " files from cache");
     }
 
+    public static void metrics() {
+        if (!PluginConfig.metricsRouteEnabled) {
+            forbidden();
+        }
+
+        renderJSON(PressMetrics.toMap());
+    }
+
+    public static void compressionProfile(Integer limit) {
+        if (!PluginConfig.metricsRouteEnabled) {
+            forbidden();
+        }
+
+        renderText(CompressionProfile.getReport(limit == null ? 20 : Math.max(limit, 0)));
+    }
+
+    /**
+     * Renders the compressed file, or its gzipped version if the browser
+     * accepts gzip encoding. If the memory cache is enabled, the file is
+     * served from memory.
+     * Files that are too large to be held in memory are read from disk.
+     * 
+     * @param stamp the memory cache stamp from before the compressed file was
+     *            retrieved
+     */
+    private static void renderCompressedFile(VirtualFile compressedFile, long stamp) {
+        File file = compressedFile.getRealFile();
+        BundleManifest.Entry bundle = BundleManifest.get(file);
+        if (bundle == null) {
+            // The file was deleted after it was found, eg because the cache
+            // was cleared. The next request will generate it again.
+            notFound();
+        }
+        BundleCache.Entry entry = BundleCache.enabled() ? BundleCache.get(file) : null;
+
+        // Choose the representation before setting the headers that describe
+        // it, so that the ETag always matches the content that is sent. If
+        // the file is held in memory without its gzipped copy, the gzipped
+        // copy is read from disk.
+        boolean gzip = false;
+        if (PluginConfig.gzipEnabled) {
+            response.setHeader("Vary", "Accept-Encoding");
+            gzip = bundle.gzipLength > 0 && acceptsGzip();
+            if (gzip && (entry == null || !entry.hasGzipContent())) {
+                gzip = Compressor.getGzipFile(file).exists();
+            }
+        }
+
+        setCacheHeaders(bundle, gzip);
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        // If the browser already has this version of the file, we don't need
+        // to send it again
+        if (!isModified(bundle, gzip)) {
+            notModified();
+        }
+
+        ServerTiming.startStream();
+        if (BundleCache.enabled()) {
+            // Only read the file into memory if the cache will keep it.
+            // Otherwise it is served from disk.
+            long size = bundle.length + (PluginConfig.gzipEnabled ? bundle.gzipLength : 0);
+            if (entry == null && BundleCache.shouldAdmit(file, bundle.length, size, stamp)) {
+                entry = loadCacheEntry(file, stamp);
+            }
+
+            if (entry != null) {
+                ByteBufferInputStream content = gzip ? entry.getGzipContent() : entry.getContent();
+                if (content != null) {
+                    renderContent(content, file.getName());
+                }
+            }
+        }
+
+        if (gzip) {
+            throw new RenderBinary(Compressor.getGzipFile(file), file.getName(), true);
+        }
+
+        renderBinary(file);
+    }
+
+    private static void setCacheHeaders(BundleManifest.Entry bundle, boolean gzip) {
+        String version = params.get("v");
+        if (version != null && version.equals(bundle.getVersion())) {
+            response.setHeader("Cache-Control", CACHE_CONTROL_VERSIONED);
+        } else {
+            response.setHeader("Cache-Control", CACHE_CONTROL_UNVERSIONED);
+        }
+
+        response.setHeader("ETag", bundle.getETag(gzip));
+        response.setHeader("Last-Modified", getHttpDateFormat().format(new Date(bundle.lastModified)));
+    }
+
+    /**
+     * Checks the conditional request headers sent by the browser against the
+     * recorded ETag and last modified date of the compressed file
+     */
+    private static boolean isModified(BundleManifest.Entry bundle, boolean gzip) {
+        Header ifNoneMatch = request.headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            String etag = bundle.getETag(gzip);
+            for (String value : ifNoneMatch.value().split(",")) {
+                // Weak comparison is used for If-None-Match, and proxies may
+                // have turned the strong validator into a weak one
+                value = value.trim();
+                if (value.startsWith("W/")) {
+                    value = value.substring(2);
+                }
+                if (value.equals(etag) || value.equals("*")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Header ifModifiedSince = request.headers.get("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                Date since = getHttpDateFormat().parse(ifModifiedSince.value());
+                return bundle.lastModified / 1000 > since.getTime() / 1000;
+            } catch (ParseException e) {
+                return true;
+            }
+        }
+
+        return true;
+    }
+
+    private static SimpleDateFormat getHttpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static BundleCache.Entry loadCacheEntry(File file, long stamp) {
+        File gzipFile = PluginConfig.gzipEnabled ? Compressor.getGzipFile(file) : null;
+        try {
+            return BundleCache.load(file, gzipFile, stamp);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    private static void renderContent(ByteBufferInputStream content, String fileName) {
+        response.setHeader("Content-Length", String.valueOf(content.length()));
+        renderBinary(content, fileName, MimeTypes.getContentType(fileName), true);
+    }
+
+    /**
+     * Checks whether the browser accepts gzip encoding, either by naming it
+     * or with a wildcard, with a quality value greater than zero
+     */
+    private static boolean acceptsGzip() {
+        Header acceptEncoding = request.headers.get("accept-encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        float gzipQuality = -1;
+        float wildcardQuality = -1;
+        for (String coding : acceptEncoding.value().split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzipQuality = Math.max(gzipQuality, quality);
+            } else if (name.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+
+        // An explicit quality for gzip takes precedence over the wildcard
+        return gzipQuality >= 0 ? gzipQuality > 0 : wildcardQuality > 0;
+    }
+
     private static void renderBadResponse(String fileType) {
+        PressMetrics.recordBadResponse();
         String response = "/*\n";
         response += "The compressed " + fileType + " file could not be generated.\n";
         response += "This can occur in two situations:\n";
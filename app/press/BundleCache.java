@@ -0,0 +1,297 @@
+package press;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the content of compressed files, so that frequently
+ * requested files can be served without reading them from disk.
+ * <p>
+ * The content is held in direct byte buffers, outside of the heap. The cache
+ * is bounded by the total size of the content it holds. When it is full, the
+ * least frequently used entries are evicted, and a new entry is only admitted
+ * if it has been requested more often than the entries it would replace. Use
+ * counts are periodically halved so that entries that were popular in the
+ * past don't stay in the cache forever.
+ */
+public class BundleCache {
+    // The use counts are halved each time this many requests have been made
+    // per entry that can fit in the cache
+    static final int AGING_SAMPLE_FACTOR = 16;
+
+    static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    static final ConcurrentMap<String, AtomicInteger> frequencies =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    static final AtomicInteger requestCount = new AtomicInteger();
+
+    // Incremented each time an entry is invalidated, so that content read
+    // from disk before an invalidation is not added to the cache after it
+    static final AtomicLong invalidations = new AtomicLong();
+
+    static long size = 0;
+
+    public static class Entry {
+        ByteBuffer content;
+        ByteBuffer gzipContent;
+
+        Entry(ByteBuffer content, ByteBuffer gzipContent) {
+            this.content = content;
+            this.gzipContent = gzipContent;
+        }
+
+        /**
+         * Gets a stream that reads the content of the file
+         */
+        public ByteBufferInputStream getContent() {
+            return new ByteBufferInputStream(content);
+        }
+
+        /**
+         * Gets a stream that reads the gzipped content of the file, or null if
+         * there is no gzipped content.
+         */
+        public ByteBufferInputStream getGzipContent() {
+            return gzipContent == null ? null : new ByteBufferInputStream(gzipContent);
+        }
+
+        /**
+         * Indicates whether the gzipped content of the file is held in memory
+         */
+        public boolean hasGzipContent() {
+            return gzipContent != null;
+        }
+
+        long getSize() {
+            return content.capacity() + (gzipContent == null ? 0 : gzipContent.capacity());
+        }
+    }
+
+    public static boolean enabled() {
+        return PluginConfig.memoryCacheMaxBytes > 0;
+    }
+
+    /**
+     * Gets the cached content of the given compressed file, or null if the
+     * file is not in the cache.
+     */
+    public static Entry get(File file) {
+        String key = file.getAbsolutePath();
+        recordRequest(key);
+        return entries.get(key);
+    }
+
+    /**
+     * Indicates whether the given compressed file is in the cache
+     */
+    public static boolean contains(File file) {
+        return entries.containsKey(file.getAbsolutePath());
+    }
+
+    /**
+     * Gets the current invalidation stamp. The stamp should be read before
+     * reading a file from disk and passed to load().
+     */
+    public static long getStamp() {
+        return invalidations.get();
+    }
+
+    /**
+     * Indicates whether the given compressed file would be added to the cache
+     * if it was read now. Files that would not be cached should be served
+     * directly from the file system, so that their content isn't read into
+     * direct memory that is only freed by the garbage collector.
+     *
+     * @param length the length of the file
+     * @param size the length of the file and of its gzipped copy
+     * @param stamp the value of getStamp() before the file was known to be
+     *            valid
+     */
+    public static synchronized boolean shouldAdmit(File file, long length, long size,
+            long stamp) {
+        return findVictims(file.getAbsolutePath(), length, size, stamp) != null;
+    }
+
+    /**
+     * Reads the given compressed file and its gzipped copy into memory, and
+     * adds them to the cache if there is space for them.
+     *
+     * @param stamp the value of getStamp() before the file was known to be
+     *            valid. If the cache has been invalidated since, the content is
+     *            returned but not cached.
+     */
+    public static Entry load(File file, File gzipFile, long stamp) throws IOException {
+        ByteBuffer content = read(file);
+        ByteBuffer gzipContent = gzipFile != null && gzipFile.exists() ? read(gzipFile) : null;
+        Entry entry = new Entry(content, gzipContent);
+
+        put(file.getAbsolutePath(), entry, stamp);
+        return entry;
+    }
+
+    /**
+     * Removes the given compressed file from the cache
+     */
+    public static void invalidate(File file) {
+        invalidations.incrementAndGet();
+        synchronized (BundleCache.class) {
+            remove(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Removes all files from the cache
+     */
+    public static void clear() {
+        invalidations.incrementAndGet();
+        synchronized (BundleCache.class) {
+            entries.clear();
+            frequencies.clear();
+            size = 0;
+        }
+    }
+
+    static synchronized void put(String key, Entry entry, long stamp) {
+        List<String> victims = findVictims(key, entry.content.capacity(), entry.getSize(),
+                stamp);
+        if (victims == null) {
+            return;
+        }
+
+        remove(key);
+        for (String victim : victims) {
+            PressLogger.trace("Evicting %s from memory cache", victim);
+            remove(victim);
+        }
+
+        entries.put(key, entry);
+        size += entry.getSize();
+    }
+
+    /**
+     * Finds the entries to evict to make room for an entry of the given size,
+     * or returns null if the entry should not be added to the cache
+     */
+    private static List<String> findVictims(String key, long length, long entrySize,
+            long stamp) {
+        long maxSize = PluginConfig.memoryCacheMaxBytes;
+        if (entrySize > maxSize || stamp != invalidations.get()) {
+            return null;
+        }
+        if (length > PluginConfig.memoryCacheMaxEntryBytes) {
+            return null;
+        }
+
+        // The entry replaces any previous version of itself
+        Entry previous = entries.get(key);
+        long currentSize = previous == null ? size : size - previous.getSize();
+
+        // If there isn't enough space, find the least frequently used entries
+        // to make room for the new one
+        List<String> victims = new ArrayList<String>();
+        if (currentSize + entrySize > maxSize) {
+            List<String> candidates = new ArrayList<String>(entries.keySet());
+            candidates.remove(key);
+            Collections.sort(candidates, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return getFrequency(a) - getFrequency(b);
+                }
+            });
+
+            int frequency = getFrequency(key);
+            long freed = 0;
+            for (String candidate : candidates) {
+                if (currentSize - freed + entrySize <= maxSize) {
+                    break;
+                }
+
+                // Only replace entries that are used less often than the new
+                // one
+                if (getFrequency(candidate) >= frequency) {
+                    return null;
+                }
+
+                victims.add(candidate);
+                freed += entries.get(candidate).getSize();
+            }
+        }
+
+        return victims;
+    }
+
+    private static void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.getSize();
+        }
+    }
+
+    private static void recordRequest(String key) {
+        AtomicInteger frequency = frequencies.get(key);
+        if (frequency == null) {
+            AtomicInteger added = new AtomicInteger();
+            frequency = frequencies.putIfAbsent(key, added);
+            if (frequency == null) {
+                frequency = added;
+            }
+        }
+        frequency.incrementAndGet();
+
+        // Periodically halve the use counts, and forget files that are no
+        // longer being requested
+        int sampleSize = AGING_SAMPLE_FACTOR * Math.max(entries.size(), 64);
+        if (requestCount.incrementAndGet() >= sampleSize) {
+            synchronized (BundleCache.class) {
+                if (requestCount.get() < sampleSize) {
+                    return;
+                }
+                requestCount.set(0);
+
+                for (Map.Entry<String, AtomicInteger> e : frequencies.entrySet()) {
+                    if (e.getValue().get() <= 1 && !entries.containsKey(e.getKey())) {
+                        frequencies.remove(e.getKey(), e.getValue());
+                    } else {
+                        e.getValue().set(e.getValue().get() / 2);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int getFrequency(String key) {
+        AtomicInteger frequency = frequencies.get(key);
+        return frequency == null ? 0 : frequency.get();
+    }
+
+    /**
+     * Reads the file directly into a direct buffer, without copying it through
+     * the heap
+     */
+    private static ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package press;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, for each compressed file, the last modified dates of its
+ * component files and when they were last checked. With the caching strategy
+ * Change, this lets press check whether the component files have changed at
+ * most once per revalidation interval, rather than reading the header of the
+ * compressed file and checking every component file on each request.
+ */
+public class BundleIndex {
+    static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public static class Entry {
+        // The list of component files, as described by FileInfo.toLine()
+        public final String components;
+
+        // The compress flags and last modified dates of the component files,
+        // in the format of the compressed file header
+        public final String timestamps;
+
+        // The last modified date of the compressed file
+        public final long lastModified;
+
+        // When the component files were last checked
+        public final long checkedAt;
+
+        Entry(String components, String timestamps, long lastModified, long checkedAt) {
+            this.components = components;
+            this.timestamps = timestamps;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+
+        /**
+         * Indicates whether the component files need to be checked again
+         */
+        public boolean isStale(long now) {
+            return now - checkedAt >= PluginConfig.revalidateMillis;
+        }
+    }
+
+    /**
+     * Gets the entry for the given compressed file, or null if there is none
+     */
+    public static Entry get(File file) {
+        return entries.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Records that the component files of the given compressed file were
+     * checked and found to match it
+     */
+    public static void put(File file, String components, String timestamps, long checkedAt) {
+        Entry entry = new Entry(components, timestamps, file.lastModified(), checkedAt);
+        entries.put(file.getAbsolutePath(), entry);
+    }
+
+    public static void remove(File file) {
+        entries.remove(file.getAbsolutePath());
+    }
+
+    public static void clear() {
+        entries.clear();
+    }
+}
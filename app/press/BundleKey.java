@@ -0,0 +1,247 @@
+package press;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import play.exceptions.UnexpectedException;
+import play.libs.Crypto;
+import play.vfs.VirtualFile;
+import press.Compressor.FileInfo;
+
+/**
+ * Encodes an ordered list of component files into a key that can be used in
+ * the url of the compressed file, so that the compressed file can be
+ * generated from the url alone, without storing the list of files in the
+ * cache.
+ * <p>
+ * The key consists of the deflated list of file names and compress flags,
+ * encoded in url-safe base 64, followed by a signature generated with the
+ * application secret so that the key cannot be forged to read arbitrary files.
+ * The signature also covers the file extension, so that a key generated for
+ * one type of file is not accepted for another. eg:
+ *
+ * <pre>
+ * S0vMzEnVS87PS0kFAA.3f2a9c0e1b7d4a66e0c1
+ * </pre>
+ */
+public class BundleKey {
+    static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .toCharArray();
+    static final char SEPARATOR = '.';
+    static final int SIGNATURE_LENGTH = 20;
+
+    // The maximum size of a decoded list of files, to protect against keys
+    // that inflate to a huge size
+    static final int MAX_DECODED_LENGTH = 64 * 1024;
+
+    /**
+     * Gets the key for the given list of files of the type with the given
+     * extension
+     */
+    public static String encode(List<FileInfo> componentFiles, String extension) {
+        StringBuilder list = new StringBuilder();
+        for (FileInfo fileInfo : componentFiles) {
+            list.append(fileInfo.compress ? 'c' : 'u').append(fileInfo.fileName).append('\n');
+        }
+
+        String payload = toBase64(deflate(getBytes(list.toString())));
+        return payload + SEPARATOR + sign(extension, payload);
+    }
+
+    /**
+     * Indicates whether the given key is in the form generated by encode()
+     */
+    public static boolean isBundleKey(String key) {
+        return key.indexOf(SEPARATOR) > 0;
+    }
+
+    /**
+     * Gets the list of files encoded in the given key, or null if the key is
+     * not valid or one of the files no longer exists.
+     *
+     * @param extension the extension of the type of file requested
+     * @param srcDir the directory the source files are read from
+     */
+    public static List<FileInfo> decode(String key, String extension, String srcDir) {
+        int separator = key.lastIndexOf(SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+
+        String payload = key.substring(0, separator);
+        String signature = key.substring(separator + 1);
+        // Compare in constant time, so that the time taken doesn't reveal how
+        // much of the signature is correct
+        if (!MessageDigest.isEqual(getBytes(signature), getBytes(sign(extension, payload)))) {
+            PressLogger.trace("Invalid signature for compressed file key %s", key);
+            return null;
+        }
+
+        byte[] decoded = inflate(fromBase64(payload));
+        if (decoded == null) {
+            return null;
+        }
+
+        String list;
+        try {
+            list = new String(decoded, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UnexpectedException(e);
+        }
+
+        List<FileInfo> componentFiles = new ArrayList<FileInfo>();
+        for (String line : list.split("\n")) {
+            if (line.length() < 2) {
+                continue;
+            }
+
+            String fileName = line.substring(1);
+            boolean compress = line.charAt(0) == 'c';
+            VirtualFile file = Compressor.findFile(fileName, srcDir);
+            if (file == null) {
+                PressLogger.trace("File %s in compressed file key no longer exists", fileName);
+                return null;
+            }
+            componentFiles.add(new FileInfo(fileName, compress, file));
+        }
+
+        return componentFiles;
+    }
+
+    static String sign(String extension, String payload) {
+        return Crypto.sign(extension + SEPARATOR + payload).substring(0, SIGNATURE_LENGTH);
+    }
+
+    static byte[] getBytes(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            out.write(buffer, 0, length);
+        }
+        deflater.end();
+
+        return out.toByteArray();
+    }
+
+    static byte[] inflate(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+
+        // The nowrap inflater needs an extra dummy byte at the end of the input
+        byte[] input = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, input, 0, bytes.length);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(input);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+        byte[] buffer = new byte[1024];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && !inflater.finished()) {
+                    // The input is truncated or corrupt
+                    return null;
+                }
+
+                out.write(buffer, 0, length);
+                if (out.size() > MAX_DECODED_LENGTH) {
+                    return null;
+                }
+            }
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+    static String toBase64(byte[] bytes) {
+        StringBuilder sb = new StringBuilder((bytes.length * 4 + 2) / 3);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b = (bytes[i] & 0xff) << 16;
+            if (i + 1 < bytes.length) {
+                b |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < bytes.length) {
+                b |= bytes[i + 2] & 0xff;
+            }
+
+            sb.append(BASE64[(b >> 18) & 0x3f]);
+            sb.append(BASE64[(b >> 12) & 0x3f]);
+            if (i + 1 < bytes.length) {
+                sb.append(BASE64[(b >> 6) & 0x3f]);
+            }
+            if (i + 2 < bytes.length) {
+                sb.append(BASE64[b & 0x3f]);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    static byte[] fromBase64(String str) {
+        if (str.length() % 4 == 1) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(str.length() * 3 / 4);
+        int b = 0;
+        int bits = 0;
+        for (int i = 0; i < str.length(); i++) {
+            int value = indexOf(str.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+
+            b = (b << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out.write((b >> bits) & 0xff);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    private static int indexOf(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        }
+        if (c == '-') {
+            return 62;
+        }
+        if (c == '_') {
+            return 63;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,501 @@
+package press;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+/**
+ * Keeps track of the compressed files that have been generated: the hash of
+ * their content, when they were generated and their size. The information is
+ * recorded when a compressed file is written, so that it can be used to
+ * answer conditional requests without reading the file.
+ * <p>
+ * Each change is also appended to a journal file in the output directory, so
+ * that the compressed files can be listed and cleared when the application
+ * starts without scanning the output directory and opening every file in it.
+ * <p>
+ * The information can also be written to a manifest file, eg when the
+ * compressed files are generated at build time with the press:precompress
+ * command. The compressed files listed in a manifest that is read when the
+ * application starts are trusted: they are served as they are, without
+ * checking whether their component files have changed.
+ */
+public class BundleManifest {
+    // The number of characters of the content hash used as a version in
+    // compressed file urls
+    static final int VERSION_LENGTH = 16;
+
+    static final String MANIFEST_FILE_PREFIX = "press-manifest";
+    static final String MANIFEST_FILE_SUFFIX = ".lst";
+    static final String JOURNAL_FILE_PREFIX = "press-journal";
+
+    static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // The journals that have been loaded, keyed by output directory and
+    // extension
+    static final Map<String, Journal> journals = new ConcurrentHashMap<String, Journal>();
+
+    public static class Entry {
+        // The SHA-1 of the content of the compressed file
+        public final String hash;
+
+        // When the compressed file was written
+        public final long lastModified;
+
+        // The size of the compressed file, and of its gzipped copy (0 if
+        // there is no gzipped copy)
+        public final long length;
+        public final long gzipLength;
+
+        // The list of component files, as described by FileInfo.toLine(), or
+        // null if it isn't known
+        public final String components;
+
+        // Whether the compressed file was listed in a manifest, and can be
+        // served without checking its component files
+        public final boolean trusted;
+
+        Entry(String hash, long lastModified, long length, long gzipLength, String components,
+                boolean trusted) {
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.gzipLength = gzipLength;
+            this.components = components;
+            this.trusted = trusted;
+        }
+
+        /**
+         * Gets the entity tag for the compressed file, or for its gzipped copy
+         */
+        public String getETag(boolean gzip) {
+            return "\"" + hash + (gzip ? "-gz" : "") + "\"";
+        }
+
+        /**
+         * Gets the version of the content, used in urls that identify the
+         * content of the compressed file
+         */
+        public String getVersion() {
+            return hash.substring(0, VERSION_LENGTH);
+        }
+    }
+
+    /**
+     * Records a compressed file that has just been written
+     *
+     * @param hash the SHA-1 of the content of the file, as a hex string
+     * @param components the list of component files as described by
+     *            FileInfo.toLine(), or null if it isn't known
+     */
+    public static Entry put(File file, String hash, String components) {
+        File gzipFile = Compressor.getGzipFile(file);
+        long gzipLength = gzipFile.exists() ? gzipFile.length() : 0;
+        Entry entry = new Entry(hash, file.lastModified(), file.length(), gzipLength, components,
+                false);
+        entries.put(file.getAbsolutePath(), entry);
+
+        Journal journal = findJournal(file);
+        if (journal != null) {
+            journal.append(journal.toLine(file.getAbsolutePath(), entry));
+        }
+
+        return entry;
+    }
+
+    /**
+     * Gets the information for the given compressed file if it was listed in
+     * a manifest, or null otherwise
+     */
+    public static Entry findTrusted(File file) {
+        Entry entry = find(file);
+        return entry != null && entry.trusted ? entry : null;
+    }
+
+    /**
+     * Gets the information recorded for the given compressed file, or null if
+     * nothing has been recorded for it.
+     */
+    public static Entry find(File file) {
+        return entries.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Gets the information recorded for the given compressed file. If nothing
+     * has been recorded for it (eg because it was generated by another
+     * process), the file is read once and the information is recorded.
+     * Returns null if the file can't be read, eg because it has been deleted
+     * since it was found.
+     */
+    public static Entry get(File file) {
+        Entry entry = find(file);
+        if (entry != null) {
+            return entry;
+        }
+
+        try {
+            return put(file, Hashes.sha1(file), null);
+        } catch (IOException e) {
+            PressLogger.trace("Could not read compressed file %s: %s", file.getName(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the information recorded in memory for the given compressed
+     * file, eg because it has been rewritten by another process. It will be
+     * recorded again the next time it is needed.
+     */
+    public static void remove(File file) {
+        entries.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Gets the compressed files in the given directory that are recorded in
+     * the journal, or null if there is no journal for the directory (eg
+     * because the files were generated by an older version of press).
+     */
+    public static List<File> listFiles(String compressedDir, String extension) {
+        Journal journal = loadJournal(compressedDir, extension);
+        if (!journal.file.exists()) {
+            return null;
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (String path : entries.keySet()) {
+            if (journal.contains(path)) {
+                files.add(new File(path));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Forgets all the compressed files in the given directory, and empties
+     * the journal. Called once the files have been deleted.
+     */
+    public static void clear(String compressedDir, String extension) {
+        Journal journal = loadJournal(compressedDir, extension);
+        for (String path : entries.keySet()) {
+            if (journal.contains(path)) {
+                entries.remove(path);
+            }
+        }
+        journal.reset();
+    }
+
+    /**
+     * Writes the information recorded for the compressed files in the given
+     * directory to the manifest file in that directory. Each line of the
+     * manifest contains, separated by spaces:
+     *
+     * <pre>
+     * - the path of the compressed file, relative to the application root
+     * - the SHA-1 of its content
+     * - when it was written
+     * - its size and the size of its gzipped copy
+     * - the list of component files, as described by FileInfo.toLine()
+     * </pre>
+     *
+     * @return the number of compressed files written to the manifest
+     */
+    public static int writeManifest(String compressedDir, String extension) {
+        String dirPath = Play.getFile(compressedDir).getAbsolutePath() + File.separator;
+        File manifestFile = getManifestFile(compressedDir, extension);
+        int count = 0;
+
+        Writer out = null;
+        try {
+            out = new FileWriter(manifestFile);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                String path = e.getKey();
+                Entry entry = e.getValue();
+                if (!path.startsWith(dirPath) || !path.endsWith(extension)) {
+                    continue;
+                }
+
+                String relativePath = compressedDir + path.substring(dirPath.length());
+                out.write(toLine(relativePath, entry) + "\n");
+                count++;
+            }
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        PressLogger.trace("Wrote %d compressed files to manifest %s", count,
+                manifestFile.getAbsolutePath());
+        return count;
+    }
+
+    /**
+     * Reads the manifest file in the given directory, if there is one. The
+     * compressed files listed in the manifest are trusted. Files listed in
+     * the manifest that no longer exist are ignored. If any of the component
+     * files of a listed file has changed since the file was generated (eg the
+     * manifest was left over from an earlier build), none of the files are
+     * trusted.
+     *
+     * @return the number of compressed files read from the manifest, or -1 if
+     *         the manifest is out of date
+     */
+    public static int readManifest(String compressedDir, String srcDir, String extension) {
+        File manifestFile = getManifestFile(compressedDir, extension);
+        if (!manifestFile.exists()) {
+            return 0;
+        }
+
+        Map<String, Entry> trusted = new LinkedHashMap<String, Entry>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(manifestFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 6);
+                    if (parts.length < 5) {
+                        continue;
+                    }
+
+                    File file = Play.getFile(parts[0]);
+                    if (!file.exists()) {
+                        continue;
+                    }
+
+                    Entry entry = parseEntry(parts, true);
+                    if (!isUpToDate(entry, srcDir)) {
+                        PressLogger.warn("Ignoring manifest %s, the component files of %s have "
+                                + "changed since it was written", manifestFile.getAbsolutePath(),
+                                parts[0]);
+                        return -1;
+                    }
+                    trusted.put(file.getAbsolutePath(), entry);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+
+        entries.putAll(trusted);
+        PressLogger.trace("Read %d compressed files from manifest %s", trusted.size(),
+                manifestFile.getAbsolutePath());
+        return trusted.size();
+    }
+
+    /**
+     * Checks that all the component files of a compressed file still exist,
+     * and haven't been modified since it was generated
+     */
+    private static boolean isUpToDate(Entry entry, String srcDir) {
+        if (entry.components == null) {
+            return false;
+        }
+
+        List<Compressor.FileInfo> componentFiles = Compressor.FileInfo.fromLine(
+                entry.components, srcDir);
+        return componentFiles != null
+                && Compressor.getLastModified(componentFiles) <= entry.lastModified;
+    }
+
+    static File getManifestFile(String compressedDir, String extension) {
+        return Play.getFile(compressedDir + MANIFEST_FILE_PREFIX + extension
+                + MANIFEST_FILE_SUFFIX);
+    }
+
+    static String toLine(String relativePath, Entry entry) {
+        return relativePath + " " + entry.hash + " " + entry.lastModified + " " + entry.length
+                + " " + entry.gzipLength + " " + (entry.components == null ? "" : entry.components);
+    }
+
+    static Entry parseEntry(String[] parts, boolean trusted) {
+        String components = parts.length > 5 && parts[5].length() > 0 ? parts[5] : null;
+        return new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long
+                .parseLong(parts[4]), components, trusted);
+    }
+
+    /**
+     * Loads the journal for the given output directory, if it hasn't already
+     * been loaded. The compressed files recorded in the journal are added to
+     * the files known in memory.
+     */
+    public static Journal loadJournal(String compressedDir, String extension) {
+        String key = compressedDir + extension;
+        synchronized (journals) {
+            Journal journal = journals.get(key);
+            if (journal == null) {
+                journal = new Journal(compressedDir, extension);
+                journal.load();
+                journals.put(key, journal);
+            }
+            return journal;
+        }
+    }
+
+    private static Journal findJournal(File file) {
+        String path = file.getAbsolutePath();
+        for (Journal journal : journals.values()) {
+            if (journal.contains(path)) {
+                return journal;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A log of the compressed files written to an output directory. A line in
+     * the same format as the manifest is appended each time a compressed file
+     * is written. Later lines for the same file replace earlier ones.
+     */
+    static class Journal {
+        String compressedDir;
+        String extension;
+        String dirPath;
+        File file;
+
+        Journal(String compressedDir, String extension) {
+            this.compressedDir = compressedDir;
+            this.extension = extension;
+            this.dirPath = Play.getFile(compressedDir).getAbsolutePath() + File.separator;
+            this.file = Play.getFile(compressedDir + JOURNAL_FILE_PREFIX + extension
+                    + MANIFEST_FILE_SUFFIX);
+        }
+
+        /**
+         * Indicates whether the given compressed file belongs in this journal
+         */
+        boolean contains(String path) {
+            return path.startsWith(dirPath) && path.endsWith(extension);
+        }
+
+        String toLine(String path, Entry entry) {
+            return BundleManifest.toLine(compressedDir + path.substring(dirPath.length()), entry);
+        }
+
+        /**
+         * Reads the journal, and compacts it if it contains a lot of lines
+         * that have been replaced by later ones
+         */
+        synchronized void load() {
+            if (!file.exists()) {
+                return;
+            }
+
+            Map<String, String> lines = new LinkedHashMap<String, String>();
+            int numLines = 0;
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(file));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        numLines++;
+                        int space = line.indexOf(' ');
+                        if (space > 0) {
+                            lines.put(line.substring(0, space), line);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                throw new UnexpectedException(e);
+            }
+
+            for (String line : lines.values()) {
+                String[] parts = line.split(" ", 6);
+                if (parts.length < 5) {
+                    continue;
+                }
+
+                // Don't replace the files listed in a manifest
+                String path = Play.getFile(parts[0]).getAbsolutePath();
+                if (findTrusted(new File(path)) == null) {
+                    entries.put(path, parseEntry(parts, false));
+                }
+            }
+
+            if (numLines > 2 * lines.size() + 16) {
+                rewrite(lines.values());
+            }
+
+            PressLogger.trace("Read %d compressed files from journal %s", lines.size(),
+                    file.getAbsolutePath());
+        }
+
+        synchronized void append(String line) {
+            Writer out = null;
+            try {
+                file.getParentFile().mkdirs();
+                out = new FileWriter(file, true);
+                out.write(line + "\n");
+            } catch (IOException e) {
+                PressLogger.warn("Could not write to journal %s: %s", file.getAbsolutePath(), e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Empties the journal. The file is kept, to indicate that the output
+         * directory no longer contains any compressed files.
+         */
+        synchronized void reset() {
+            // If the output directory doesn't exist, there is nothing to reset
+            if (!file.getParentFile().exists()) {
+                return;
+            }
+            rewrite(new ArrayList<String>());
+        }
+
+        private void rewrite(Iterable<String> lines) {
+            File tmp = new File(file.getAbsolutePath() + ".tmp");
+            Writer out = null;
+            try {
+                file.getParentFile().mkdirs();
+                out = new FileWriter(tmp);
+                for (String line : lines) {
+                    out.write(line + "\n");
+                }
+                out.close();
+                out = null;
+
+                if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                    PressLogger.warn("Could not rewrite journal %s", file.getAbsolutePath());
+                }
+            } catch (IOException e) {
+                PressLogger.warn("Could not rewrite journal %s: %s", file.getAbsolutePath(), e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+                tmp.delete();
+            }
+        }
+    }
+}
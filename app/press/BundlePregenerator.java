@@ -0,0 +1,285 @@
+package press;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+import play.Play;
+import play.vfs.VirtualFile;
+import press.Compressor.FileCompressor;
+import press.Compressor.FileInfo;
+
+/**
+ * Generates compressed files when the application starts, so that the first
+ * visitor to each page doesn't have to wait for compression.
+ * <p>
+ * The lists of files to compress come from two places:
+ * <ul>
+ * <li>The lists of files that were requested while the application was
+ * running. Each distinct list is recorded in a file in the output directory,
+ * so it can be replayed the next time the application starts.</li>
+ * <li>A scan of the templates in app/views for groups of press tags with a
+ * compressed tag. This only finds lists of files declared in a single
+ * template with literal file names.</li>
+ * </ul>
+ */
+public class BundlePregenerator {
+    static final String RECORD_FILE_PREFIX = "press-bundles";
+    static final String RECORD_FILE_SUFFIX = ".lst";
+
+    static final Pattern TAG_PATTERN = Pattern.compile("#\\{\\s*press\\.([\\w-]+)([^}]*)\\}");
+    static final Pattern SRC_PATTERN = Pattern.compile("(?:^|[\\s,])src\\s*[:=]\\s*(['\"])(.*?)\\1");
+    static final Pattern ARG_PATTERN = Pattern.compile("^\\s*(['\"])(.*?)\\1");
+    static final Pattern NO_COMPRESS_PATTERN = Pattern.compile("compress\\s*[:=]\\s*false");
+
+    // The lists of files that have already been recorded, so that each list
+    // is only written to the record file once
+    static final Set<String> recorded = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Records the given list of files, so that the compressed file for the
+     * list is generated the next time the application starts
+     */
+    public static void record(List<FileInfo> componentFiles, String compressedDir,
+            String extension) {
+        String line = FileInfo.toLine(componentFiles);
+        if (!recorded.add(extension + line)) {
+            return;
+        }
+
+        File recordFile = getRecordFile(compressedDir, extension);
+        synchronized (BundlePregenerator.class) {
+            Writer out = null;
+            try {
+                recordFile.getParentFile().mkdirs();
+                out = new FileWriter(recordFile, true);
+                out.write(line + "\n");
+            } catch (IOException e) {
+                PressLogger.trace("Could not record list of files to %s: %s",
+                        recordFile.getAbsolutePath(), e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates the compressed files for all the lists of JavaScript and CSS
+     * files that were recorded by the previous run, or found in the templates.
+     * Blocks until all the files have been generated.
+     */
+    public static void pregenerate() {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        addTasks(tasks, JSCompressor.jsFileCompressor, JSCompressor.TAG_NAME,
+                "#{press.compressed-script}", PluginConfig.js.srcDir,
+                PluginConfig.js.compressedDir, JSCompressor.EXTENSION);
+        addTasks(tasks, CSSCompressor.cssFileCompressor, CSSCompressor.TAG_NAME,
+                "#{press.compressed-stylesheet}", PluginConfig.css.srcDir,
+                PluginConfig.css.compressedDir, CSSCompressor.EXTENSION);
+
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        PressLogger.info("Generating %d compressed files", tasks.size());
+        long timeStart = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                PluginConfig.compressionThreads));
+        try {
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            PressLogger.warn("Could not generate compressed files: %s", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long timeAfter = System.currentTimeMillis();
+        PressLogger.info("Generated %d compressed files in %d milli-seconds", tasks.size(),
+                (timeAfter - timeStart));
+    }
+
+    private static void addTasks(List<Callable<Void>> tasks, final FileCompressor compressor,
+            String tagName, String compressedTagName, String srcDir, final String compressedDir,
+            final String extension) {
+
+        // Use a map keyed by the list of files, to remove duplicates
+        Map<String, List<FileInfo>> lists = new LinkedHashMap<String, List<FileInfo>>();
+        for (List<FileInfo> list : readRecorded(srcDir, compressedDir, extension)) {
+            lists.put(FileInfo.toLine(list), list);
+        }
+        for (List<FileInfo> list : scanTemplates(getTagName(tagName),
+                getTagName(compressedTagName), srcDir)) {
+            lists.put(FileInfo.toLine(list), list);
+        }
+
+        final int total = lists.size();
+        final AtomicInteger count = new AtomicInteger();
+        for (final List<FileInfo> list : lists.values()) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        Compressor.getCompressedFile(compressor, list, compressedDir, extension);
+                        PressLogger.info("Generated compressed %s file %d of %d", extension,
+                                count.incrementAndGet(), total);
+                    } catch (Exception e) {
+                        PressLogger.warn("Could not generate compressed %s file for %s: %s",
+                                extension, FileInfo.getFileNames(list), e);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the lists of files recorded by previous runs of the application.
+     * Lists that refer to files that no longer exist are skipped.
+     */
+    static List<List<FileInfo>> readRecorded(String srcDir, String compressedDir,
+            String extension) {
+        List<List<FileInfo>> lists = new ArrayList<List<FileInfo>>();
+        File recordFile = getRecordFile(compressedDir, extension);
+        if (!recordFile.exists()) {
+            return lists;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(recordFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    List<FileInfo> list = FileInfo.fromLine(line, srcDir);
+                    if (list != null) {
+                        recorded.add(extension + line);
+                        lists.add(list);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            PressLogger.warn("Could not read list of files from %s: %s",
+                    recordFile.getAbsolutePath(), e);
+        }
+
+        return lists;
+    }
+
+    /**
+     * Scans the templates in app/views for groups of press tags that are
+     * output with a compressed tag
+     */
+    @SuppressWarnings("unchecked")
+    static List<List<FileInfo>> scanTemplates(String tagName, String compressedTagName,
+            String srcDir) {
+        List<List<FileInfo>> lists = new ArrayList<List<FileInfo>>();
+        File viewsDir = new File(Play.applicationPath, "app/views");
+        if (!viewsDir.isDirectory()) {
+            return lists;
+        }
+
+        for (File template : (Iterable<File>) FileUtils.listFiles(viewsDir, null, true)) {
+            try {
+                String content = FileUtils.readFileToString(template, "utf-8");
+                List<FileInfo> list = scanTemplate(content, tagName, compressedTagName, srcDir);
+                if (list != null && !list.isEmpty()) {
+                    lists.add(list);
+                }
+            } catch (Exception e) {
+                PressLogger.trace("Could not scan template %s: %s", template.getAbsolutePath(), e);
+            }
+        }
+
+        return lists;
+    }
+
+    /**
+     * Gets the list of files declared with the given tag in the template
+     * content, or null if the template doesn't contain the compressed tag, or
+     * if any of the file names can't be determined statically.
+     */
+    static List<FileInfo> scanTemplate(String content, String tagName, String compressedTagName,
+            String srcDir) {
+        List<FileInfo> list = new ArrayList<FileInfo>();
+        boolean hasCompressedTag = false;
+
+        Matcher matcher = TAG_PATTERN.matcher(content);
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            if (name.equals(compressedTagName)) {
+                hasCompressedTag = true;
+                continue;
+            }
+            if (!name.equals(tagName)) {
+                continue;
+            }
+
+            String args = matcher.group(2);
+            String src = getSrc(args);
+            if (src == null) {
+                return null;
+            }
+
+            boolean compress = !NO_COMPRESS_PATTERN.matcher(args).find();
+            for (String fileName : Plugin.getResolvedFiles(src, srcDir)) {
+                VirtualFile file = Compressor.checkFileExists(fileName, srcDir);
+                list.add(new FileInfo(fileName, compress, file));
+            }
+        }
+
+        return hasCompressedTag ? list : null;
+    }
+
+    private static String getSrc(String args) {
+        Matcher matcher = SRC_PATTERN.matcher(args);
+        if (matcher.find()) {
+            return matcher.group(2);
+        }
+
+        matcher = ARG_PATTERN.matcher(args);
+        if (matcher.find()) {
+            return matcher.group(2);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the name of the tag without the surrounding #{}, eg "press.script"
+     * becomes "script"
+     */
+    private static String getTagName(String tag) {
+        return tag.substring("#{press.".length(), tag.length() - 1);
+    }
+
+    private static File getRecordFile(String compressedDir, String extension) {
+        return Play.getFile(compressedDir + RECORD_FILE_PREFIX + extension + RECORD_FILE_SUFFIX);
+    }
+}
@@ -0,0 +1,151 @@
+package press;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.cache.Cache;
+import press.Compressor.FileInfo;
+
+/**
+ * Identifies each distinct ordered list of component files by a compact id,
+ * derived from a 128 bit hash of the file names and compress flags. The id is
+ * used both as the key in the compressed file url and as the name of the
+ * compressed file, so pages that include the same files in the same order
+ * share a key and a compressed file.
+ * <p>
+ * A page whose compressed file url is output before its list of files is
+ * known uses a key derived from the page instead, which is bound to the list
+ * once it is known. There is a page key for each page, so only a bounded
+ * number of them are kept in memory.
+ * <p>
+ * The lists are kept in memory for the lifetime of the application, and are
+ * also stored in the cache under their key so that other servers sharing the
+ * cache can serve the compressed file.
+ */
+public class BundleRegistry {
+    // The maximum number of page keys kept in memory. When there are more,
+    // they are all forgotten, and found in the cache or bound again.
+    static final int MAX_PAGES = 4096;
+
+    static final Map<String, Registration> registrations = new ConcurrentHashMap<String, Registration>();
+    static final ConcurrentMap<String, Registration> pages =
+            new ConcurrentHashMap<String, Registration>();
+
+    static class Registration {
+        final List<FileInfo> componentFiles;
+
+        // The key of the list of files
+        final String key;
+
+        // When the list was last stored in the cache
+        volatile long sharedAt;
+
+        Registration(List<FileInfo> componentFiles, String key) {
+            this.componentFiles = componentFiles;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Gets the id of the given list of files
+     */
+    public static String getId(List<FileInfo> componentFiles) {
+        StringBuilder list = new StringBuilder();
+        for (FileInfo fileInfo : componentFiles) {
+            list.append(fileInfo.compress ? 'c' : 'u').append(fileInfo.fileName).append('\n');
+        }
+
+        return Hashes.murmur3(BundleKey.getBytes(list.toString()));
+    }
+
+    /**
+     * Registers the given list of files, and returns its key: the id of the
+     * list followed by the extension
+     */
+    public static String register(List<FileInfo> componentFiles, String extension) {
+        String key = getId(componentFiles) + extension;
+        register(key, componentFiles);
+        return key;
+    }
+
+    /**
+     * Registers the given list of files with the given key, which must have
+     * been returned by register() for the same list
+     */
+    public static void register(String key, List<FileInfo> componentFiles) {
+        Registration registration = registrations.get(key);
+        if (registration == null) {
+            registration = new Registration(componentFiles, key);
+            registrations.put(key, registration);
+        }
+
+        share(key, registration);
+    }
+
+    /**
+     * Binds the key of a page to the given list of files, which has been
+     * registered with the given key. Returns false if the page key is already
+     * bound to a different list, by this server or by another server sharing
+     * the cache, in which case the page must use the key of the list.
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean bind(String pageKey, String key, List<FileInfo> componentFiles) {
+        Registration registration = pages.get(pageKey);
+        if (registration == null) {
+            // Another server may already have bound the page key. If so, keep
+            // to the list it was bound to.
+            long start = ServerTiming.start();
+            List<FileInfo> shared = (List<FileInfo>) Cache.get(pageKey);
+            ServerTiming.record(ServerTiming.Phase.CACHE_GET, start);
+            if (shared == null) {
+                registration = new Registration(componentFiles, key);
+            } else {
+                String extension = key.substring(key.lastIndexOf('.'));
+                registration = new Registration(shared, getId(shared) + extension);
+            }
+
+            if (pages.size() >= MAX_PAGES) {
+                pages.clear();
+            }
+            Registration previous = pages.putIfAbsent(pageKey, registration);
+            if (previous != null) {
+                registration = previous;
+            }
+        }
+
+        if (!registration.key.equals(key)) {
+            return false;
+        }
+
+        share(pageKey, registration);
+        return true;
+    }
+
+    /**
+     * Stores the list of files in the cache for other servers, renewing it
+     * well before it expires
+     */
+    private static void share(String key, Registration registration) {
+        long now = System.currentTimeMillis();
+        if (now - registration.sharedAt > PluginConfig.compressionKeyStorageMillis / 2) {
+            registration.sharedAt = now;
+            long start = ServerTiming.start();
+            Cache.set(key, registration.componentFiles, PluginConfig.compressionKeyStorageTime);
+            ServerTiming.record(ServerTiming.Phase.CACHE_SET, start);
+        }
+    }
+
+    /**
+     * Gets the list of files registered with the given key, or null if the
+     * list was not registered by this server
+     */
+    public static List<FileInfo> get(String key) {
+        Registration registration = registrations.get(key);
+        if (registration == null) {
+            registration = pages.get(key);
+        }
+        return registration == null ? null : registration.componentFiles;
+    }
+}
@@ -6,6 +6,7 @@ import java.io.Reader;
 import java.io.Writer;
 import java.util.List;
 
+import play.libs.F;
 import play.vfs.VirtualFile;
 
 import com.yahoo.platform.yui.compressor.CssCompressor;
@@ -13,11 +14,12 @@ import com.yahoo.platform.yui.compressor.CssCompressor;
 public class CSSCompressor extends Compressor {
     public static final String TAG_NAME = "#{press.stylesheet}";
     public static final String FILE_TYPE = "CSS";
+    public static final String REQUEST_START = "<!-- press-css: ";
     public static final String EXTENSION = ".css";
 
     public CSSCompressor() {
         super(FILE_TYPE, EXTENSION, "press.Press.getCompressedCSS", TAG_NAME,
-                "#{press.compressed-stylesheet}", "<!-- press-css: ", " -->",
+                "#{press.compressed-stylesheet}", REQUEST_START, REQUEST_END,
                 PluginConfig.css.srcDir, PluginConfig.css.compressedDir);
     }
 
@@ -26,7 +28,13 @@ public class CSSCompressor extends Compressor {
     }
 
     public static VirtualFile getCompressedFile(String key) {
-        return getCompressedFile(cssFileCompressor, key, PluginConfig.css.compressedDir, EXTENSION);
+        return getCompressedFile(cssFileCompressor, key, PluginConfig.css.srcDir,
+                PluginConfig.css.compressedDir, EXTENSION);
+    }
+
+    public static F.Promise<VirtualFile> getCompressedFileAsync(String key) {
+        return getCompressedFileAsync(cssFileCompressor, key, PluginConfig.css.srcDir,
+                PluginConfig.css.compressedDir, EXTENSION);
     }
 
     public static VirtualFile checkCSSFileExists(String fileName) {
@@ -37,10 +45,31 @@ public class CSSCompressor extends Compressor {
         return clearCache(PluginConfig.css.compressedDir, EXTENSION);
     }
 
+    public static void loadJournal() {
+        BundleManifest.loadJournal(PluginConfig.css.compressedDir, EXTENSION);
+    }
+
+    public static int readManifest() {
+        return BundleManifest.readManifest(PluginConfig.css.compressedDir,
+                PluginConfig.css.srcDir, EXTENSION);
+    }
+
+    public static int writeManifest() {
+        return BundleManifest.writeManifest(PluginConfig.css.compressedDir, EXTENSION);
+    }
+
+    public static int pruneFragments() {
+        return pruneFragments(PluginConfig.css.compressedDir, EXTENSION);
+    }
+
     static FileCompressor cssFileCompressor = new FileCompressor() {
         public void compress(String fileName, Reader in, Writer out) throws IOException {
             CssCompressor compressor = new CssCompressor(in);
             compressor.compress(out, PluginConfig.css.lineBreak);
         }
+
+        public String getOptions() {
+            return "yui-css:" + PluginConfig.css.lineBreak;
+        }
     };
 }
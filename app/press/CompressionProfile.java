@@ -0,0 +1,155 @@
+package press;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long each component file takes to compress, and how much
+ * smaller it gets, across all generations of compressed files. Files that are
+ * slow to compress or that barely shrink are good candidates for being
+ * minified in advance and included with compress:false, or for being split.
+ */
+public class CompressionProfile {
+    static final ConcurrentMap<String, FileStats> files =
+            new ConcurrentHashMap<String, FileStats>();
+
+    public static class FileStats {
+        public final String fileName;
+        final AtomicLong compressions = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        // The size of the file and of its compressed output, the last time
+        // it was compressed
+        volatile long bytesIn;
+        volatile long bytesOut;
+
+        FileStats(String fileName) {
+            this.fileName = fileName;
+        }
+
+        void record(long nanos, long in, long out) {
+            compressions.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            bytesIn = in;
+            bytesOut = out;
+        }
+
+        public long getCompressions() {
+            return compressions.get();
+        }
+
+        public double getMeanMillis() {
+            long n = compressions.get();
+            return n == 0 ? 0 : totalNanos.get() / (n * 1000000.0);
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1000000.0;
+        }
+
+        /**
+         * The size of the compressed output as a fraction of the size of the
+         * file. The higher the ratio, the less the file is compressed.
+         */
+        public double getRatio() {
+            return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+        }
+    }
+
+    /**
+     * Records the compression of a component file
+     *
+     * @param bytesIn the size of the file in bytes
+     * @param compressed the compressed output
+     */
+    public static void record(String fileName, long nanos, long bytesIn, String compressed) {
+        // The compressed file is written in the default encoding, so measure
+        // the output in the same encoding
+        record(fileName, nanos, bytesIn, compressed.getBytes().length);
+    }
+
+    static void record(String fileName, long nanos, long bytesIn, long bytesOut) {
+        FileStats stats = files.get(fileName);
+        if (stats == null) {
+            stats = new FileStats(fileName);
+            FileStats existing = files.putIfAbsent(fileName, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(nanos, bytesIn, bytesOut);
+    }
+
+    /**
+     * Gets the files that take the longest to compress on average, slowest
+     * first
+     */
+    public static List<FileStats> getSlowest(int limit) {
+        return getTop(limit, new Comparator<FileStats>() {
+            public int compare(FileStats a, FileStats b) {
+                return Double.compare(b.getMeanMillis(), a.getMeanMillis());
+            }
+        });
+    }
+
+    /**
+     * Gets the files whose compressed output is the largest fraction of their
+     * size, least compressible first
+     */
+    public static List<FileStats> getLeastCompressible(int limit) {
+        return getTop(limit, new Comparator<FileStats>() {
+            public int compare(FileStats a, FileStats b) {
+                return Double.compare(b.getRatio(), a.getRatio());
+            }
+        });
+    }
+
+    private static List<FileStats> getTop(int limit, Comparator<FileStats> comparator) {
+        if (limit <= 0) {
+            return new ArrayList<FileStats>();
+        }
+
+        List<FileStats> list = new ArrayList<FileStats>(files.values());
+        Collections.sort(list, comparator);
+        return list.size() > limit ? list.subList(0, limit) : list;
+    }
+
+    /**
+     * Gets a plain text report of the slowest and least compressible files
+     */
+    public static String getReport(int limit) {
+        StringBuilder report = new StringBuilder();
+        report.append("Compression profile of ").append(files.size()).append(" files\n\n");
+
+        report.append("Slowest files to compress:\n");
+        appendFiles(report, getSlowest(limit));
+
+        report.append("\nLeast compressible files:\n");
+        appendFiles(report, getLeastCompressible(limit));
+        return report.toString();
+    }
+
+    private static void appendFiles(StringBuilder report, List<FileStats> list) {
+        if (files.isEmpty()) {
+            report.append("  (no files have been compressed)\n");
+            return;
+        }
+
+        for (FileStats stats : list) {
+            report.append(String.format("  %-50s %8.1f ms mean %8.1f ms max %6d runs "
+                    + "%9d -> %9d bytes (%.0f%%)\n", stats.fileName, stats.getMeanMillis(), stats
+                    .getMaxMillis(), stats.getCompressions(), stats.bytesIn, stats.bytesOut, stats
+                    .getRatio() * 100));
+        }
+    }
+}
@@ -2,30 +2,63 @@ package press;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
 
 import play.Play;
 import play.PlayPlugin;
 import play.cache.Cache;
 import play.exceptions.UnexpectedException;
-import play.libs.Crypto;
+import play.libs.F;
+import play.libs.Time;
 import play.mvc.Router;
 import play.mvc.Http.Request;
-import play.mvc.Http.Response;
 import play.mvc.Router.ActionDefinition;
 import play.templates.JavaExtensions;
 import play.vfs.VirtualFile;
@@ -34,6 +67,15 @@ public abstract class Compressor extends PlayPlugin {
     static final String PRESS_SIGNATURE = "press-1.0";
     static final String PATTERN_TEXT = "^/\\*" + PRESS_SIGNATURE + "\\|(.*?)\\*/$";
     static final Pattern HEADER_PATTERN = Pattern.compile(PATTERN_TEXT);
+    static final String GZIP_EXTENSION = ".gz";
+
+    // The end of the signature of a request to compress a file
+    static final String REQUEST_END = " -->";
+    static final String LOCK_EXTENSION = ".lock";
+
+    // Stateless keys longer than this fall back to a key stored in the cache,
+    // to keep urls within the limits of browsers and proxies
+    static final int MAX_STATELESS_KEY_LENGTH = 1024;
 
     // File type, eg "JavaScript"
     String fileType;
@@ -62,14 +104,56 @@ public abstract class Compressor extends PlayPlugin {
     // Directory for the compressed output, eg "/public/javascripts/js"
     String compressedDir;
 
-    // The key used to identify this request
-    String requestKey = null;
+    // The compressed file url that was output in the response, or a
+    // placeholder if the url was not yet known when it was output
+    String outputUrl = null;
+
+    // The key of the page, if the url that was output contains it because
+    // the list of files was not yet known
+    String pageKey = null;
 
     // The list of files compressed as part of this request
     Map<String, List<FileInfo>> fileInfos;
 
+    // The files compressed as part of this request, in the order in which
+    // they were added by the template
+    List<FileInfo> fileInfosInRenderOrder = new ArrayList<FileInfo>();
+
+    // The template output that the file requests were written to, and
+    // whether they were all written to the same output, in which case they
+    // appear in the response in the order in which they were added
+    Object renderOutput;
+    boolean renderOrderKnown = true;
+
+    // The extension followed by the compress flag and name of each file, in
+    // the order in which they were added, used to find the render plan
+    StringBuilder renderedFiles;
+
+    // Shared pool used to compress the component files of a bundle
+    // concurrently. Created lazily and shut down when the application stops.
+    private static ExecutorService compressionExecutor;
+
+    // Bounded pool used to generate compressed files for requests, so that
+    // request threads aren't held while files are generated. Created lazily
+    // and shut down when the application stops.
+    private static ExecutorService generationExecutor;
+
+    // Fails the requests that have waited longer than the maximum compression
+    // time for a file to be generated. Created lazily and cancelled when the
+    // application stops.
+    private static Timer timeoutTimer;
+
+    // The compressed files currently being generated, keyed by path, so that
+    // concurrent requests for the same file wait for a single generation
+    private static final ConcurrentMap<String, Generation> inFlight =
+            new ConcurrentHashMap<String, Generation>();
+
     protected interface FileCompressor {
         public void compress(String fileName, Reader in, Writer out) throws Exception;
+
+        // The options that affect the compressed output, eg the YUI options.
+        // Compressed fragments are only reused if the options are the same.
+        public String getOptions();
     }
 
     public Compressor(String fileType, String extension, String getCompressedFileAction,
@@ -77,6 +161,7 @@ public abstract class Compressor extends PlayPlugin {
             String pressRequestEnd, String srcDir, String compressedDir) {
 
         this.fileInfos = new HashMap<String, List<FileInfo>>();
+        this.renderedFiles = new StringBuilder(extension);
 
         this.fileType = fileType;
         this.extension = extension;
@@ -89,12 +174,38 @@ public abstract class Compressor extends PlayPlugin {
         this.compressedDir = PluginConfig.addTrailingSlash(compressedDir);
     }
 
+    /**
+     * Clears the files added to the compressor, so that it can be reused for
+     * another request
+     */
+    public void reset() {
+        outputUrl = null;
+        pageKey = null;
+        fileInfos.clear();
+        fileInfosInRenderOrder.clear();
+        renderOutput = null;
+        renderOrderKnown = true;
+        renderedFiles.setLength(0);
+        renderedFiles.append(extension);
+    }
+
     /**
      * Adds a file to the list of files to be compressed
      * 
      * @return the file request signature to be output in the HTML
      */
     public String add(String fileName, boolean compress) {
+        return add(fileName, compress, null);
+    }
+
+    /**
+     * Adds a file to the list of files to be compressed
+     *
+     * @param output the template output that the file request signature will
+     *            be written to, or null if it isn't known
+     * @return the file request signature to be output in the HTML
+     */
+    public String add(String fileName, boolean compress, Object output) {
         if (compress) {
             PressLogger.trace("Adding %s to output", fileName);
         } else {
@@ -106,7 +217,7 @@ public abstract class Compressor extends PlayPlugin {
         }
 
         // Check that the file exists
-        checkFileExists(fileName);
+        VirtualFile file = checkFileExists(fileName);
 
         // Add the file to the list of files to be compressed
         List<FileInfo> fileInfoList = fileInfos.get(fileName);
@@ -114,9 +225,22 @@ public abstract class Compressor extends PlayPlugin {
             fileInfoList = new ArrayList<FileInfo>();
             fileInfos.put(fileName, fileInfoList);
         }
-        fileInfoList.add(new FileInfo(fileName, compress, null));
+        FileInfo fileInfo = new FileInfo(fileName, compress, file);
+        fileInfoList.add(fileInfo);
+        fileInfosInRenderOrder.add(fileInfo);
+        renderedFiles.append(compress ? 'c' : 'u').append(fileName).append('\n');
+
+        // The order in which the files were added is only the order in which
+        // they appear in the response if they're all written to the same
+        // template output. Templates that extend a layout, or tag bodies that
+        // are captured, are rendered to a different output and inserted into
+        // the response later.
+        if (output == null || (renderOutput != null && output != renderOutput)) {
+            renderOrderKnown = false;
+        }
+        renderOutput = output;
 
-        return getFileRequestSignature(getFileNameWithIndex(fileName, (fileInfoList.size() - 1)));
+        return getFileRequestSignature(fileName, fileInfoList.size() - 1);
     }
 
     /**
@@ -145,35 +269,121 @@ public abstract class Compressor extends PlayPlugin {
             PressLogger.trace("File has already been compressed");
         } else {
             // If so, generate it
-            writeCompressedFile(compressor, componentFiles, outputFile, null);
+            FragmentCache fragments = new FragmentCache(compressedDir, extension);
+            generateCompressedFile(compressor, componentFiles, outputFile, fragments, extension,
+                    false);
         }
 
         return outputFilePath;
     }
 
     public String compressedUrl() {
-        if (requestKey != null) {
+        if (outputUrl != null) {
             String msg = "There is more than one " + compressedTagName
                     + " tag in the template output. " + "There must be one only.";
             throw new PressException(msg);
         }
 
-        requestKey = getRequestKey() + extension;
-        Map<String, Object> params = new HashMap<String, Object>();
-        params.put("key", requestKey);
-        ActionDefinition route = Router.reverse(getCompressedFileAction, params);
+        // If the same files have been added in the same order before, output
+        // the url that was worked out then
+        RenderPlans.Plan plan = getRenderPlan();
+        if (plan != null) {
+            outputUrl = plan.url;
+            return outputUrl;
+        }
+
+        // A stateless key contains the list of files, so it can't be output
+        // until the list is known. Output a placeholder that will be replaced
+        // by the url in saveFileList()
+        if (PluginConfig.statelessKeys) {
+            outputUrl = getUrlPlaceholder(extension);
+            PressLogger.trace("Adding placeholder for compressed %s url", fileType);
+            return outputUrl;
+        }
+
+        // The key of the compressed file depends on the list of files in the
+        // order in which they appear in the response. If all the files have
+        // already been added and their order is known, output the url now.
+        // Otherwise output a url with the key of the page, which is bound to
+        // the list of files in saveFileList(), so that the response doesn't
+        // have to be changed.
+        if (!PluginConfig.renderOrder || !renderOrderKnown || fileInfosInRenderOrder.isEmpty()) {
+            pageKey = getPageKey();
+            PressLogger.trace("Adding page key %s for compressed %s url", pageKey, fileType);
+            outputUrl = getCompressedFileUrl(pageKey, null);
+            return outputUrl;
+        }
+
+        String key = BundleRegistry.getId(fileInfosInRenderOrder) + extension;
+
+        // If the content of the compressed file is known, add its version to
+        // the url so that browsers can cache it indefinitely
+        String version = getCompressedFileVersion(fileInfosInRenderOrder);
 
         int numFiles = getTotalFileCount();
-        PressLogger.trace("Adding key %s for compression of %d files", requestKey, numFiles);
+        PressLogger.trace("Adding key %s for compression of %d files", key, numFiles);
+
+        outputUrl = getCompressedFileUrl(key, version);
+        return outputUrl;
+    }
+
+    private String getCompressedFileUrl(String key, String version) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("key", key);
+        if (version != null) {
+            params.put("v", version);
+        }
+        ActionDefinition route = Router.reverse(getCompressedFileAction, params);
 
         return route.url;
     }
 
+    /**
+     * Gets the key of the current page: the id of its path, followed by the
+     * extension
+     */
+    private String getPageKey() {
+        return Hashes.murmur3(BundleKey.getBytes(Request.current().path)) + extension;
+    }
+
+    /**
+     * Gets the version of the compressed file for the given list of files, or
+     * null if it isn't known. The content of a compressed file can only be
+     * known in advance when the cache is always used, because then the content
+     * won't change until the cache is cleared.
+     */
+    private String getCompressedFileVersion(List<FileInfo> componentFiles) {
+        if (!PluginConfig.cache.equals(CachingStrategy.Always)) {
+            return null;
+        }
+
+        String filePath = getCompressedFilePath(componentFiles, compressedDir, extension);
+        return getCompressedFileVersion(BundleManifest.find(Play.getFile(filePath)));
+    }
+
+    private static String getCompressedFileVersion(BundleManifest.Entry entry) {
+        if (entry == null || !PluginConfig.cache.equals(CachingStrategy.Always)) {
+            return null;
+        }
+        return entry.getVersion();
+    }
+
+    /**
+     * Gets the render plan for the files added so far, or null if there is
+     * none or the order of the files in the response isn't known
+     */
+    private RenderPlans.Plan getRenderPlan() {
+        if (!PluginConfig.renderOrder || !renderOrderKnown || fileInfosInRenderOrder.isEmpty()) {
+            return null;
+        }
+        return RenderPlans.get(renderedFiles.toString());
+    }
+
     public void saveFileList() {
-        // If the request key has not been set, that means there was no request
-        // for compressed source anywhere in the template file, so we don't
-        // need to generate anything
-        if (requestKey == null) {
+        // If the url has not been output, that means there was no request for
+        // compressed source anywhere in the template file, so we don't need to
+        // generate anything
+        if (outputUrl == null) {
             // If the file list is not empty, then there have been files added
             // to compression but they will not be output. So throw an
             // exception telling the user he needs to add some files.
@@ -190,25 +400,99 @@ public abstract class Compressor extends PlayPlugin {
             return;
         }
 
+        // If the same files have been added in the same order before, the
+        // list of files just needs to be registered again, unless it is
+        // contained in a stateless key
+        RenderPlans.Plan plan = getRenderPlan();
+        if (plan != null) {
+            PressLogger.trace("Using render plan for %s files", fileType);
+            if (!plan.stateless) {
+                BundleRegistry.register(plan.key, plan.componentFiles);
+            }
+            useUrl(plan.key, plan.componentFiles, plan.url);
+            return;
+        }
+
         // The press tag may not always have been executed by the template
         // engine in the same order that the resulting <script> tags would
-        // appear in the HMTL output. So here we scan the output to figure out
-        // in what order the <script> tags should actually be output.
-        long timeStart = System.currentTimeMillis();
-        List<FileInfo> orderedFileNames = getFileListOrder();
-        long timeAfter = System.currentTimeMillis();
-        PressLogger.trace("Time to scan response for %s files for '%s': %d milli-seconds",
-                fileType, Request.current().url, (timeAfter - timeStart));
+        // appear in the HMTL output. Unless the order in which the tags were
+        // executed is known to be the output order, scan the output to figure
+        // out in what order the <script> tags should actually be output.
+        List<FileInfo> orderedFileNames;
+        if (PluginConfig.renderOrder && renderOrderKnown) {
+            PressLogger.trace("Using render order of %s files", fileType);
+            orderedFileNames = fileInfosInRenderOrder;
+        } else {
+            long timeStart = System.currentTimeMillis();
+            orderedFileNames = getFileListOrder();
+            long timeAfter = System.currentTimeMillis();
+            PressLogger.trace("Time to scan response for %s files for '%s': %d milli-seconds",
+                    fileType, Request.current().url, (timeAfter - timeStart));
+        }
+
+        List<FileInfo> componentFiles = getComponentFiles(orderedFileNames);
+        recordFileList(componentFiles);
+
+        // With stateless keys, the list of files is encoded in the key, unless
+        // the key would be too long. Otherwise register the list of files so
+        // that when the server receives a request for the compressed file, it
+        // can retrieve the list of files and compress them.
+        String key = null;
+        boolean stateless = false;
+        if (PluginConfig.statelessKeys) {
+            key = BundleKey.encode(componentFiles, extension) + extension;
+            stateless = key.length() <= MAX_STATELESS_KEY_LENGTH;
+            if (!stateless) {
+                PressLogger.trace("Stateless key too long, registering list of %s files",
+                        fileType);
+                key = null;
+            }
+        }
+        if (key == null) {
+            key = BundleRegistry.register(componentFiles, extension);
+        }
 
-        // Add the list of files to the cache.
-        // When the server receives a request for the compressed file, it will
-        // retrieve the list of files and compress them.
-        addFileListToCache(requestKey, orderedFileNames);
+        File compressedFile = Play.getFile(getCompressedFilePath(componentFiles, compressedDir,
+                extension));
+        BundleManifest.Entry entry = BundleManifest.find(compressedFile);
+        String url = getCompressedFileUrl(key, getCompressedFileVersion(entry));
+        useUrl(key, componentFiles, url);
+
+        // Remember the result for the next time the same files are added
+        if (PluginConfig.renderOrder && renderOrderKnown && !fileInfosInRenderOrder.isEmpty()) {
+            RenderPlans.put(renderedFiles.toString(), new RenderPlans.Plan(key, componentFiles,
+                    url, stateless, compressedFile, entry));
+        }
+    }
+
+    /**
+     * Makes the url that was output in the response serve the compressed file
+     * for the given list of files. A url with the key of the page is kept,
+     * and the page key bound to the list, unless the page has been rendered
+     * with a different list before, eg because it includes different files
+     * for different users. Otherwise, if the url that was output is not the
+     * url for the list of files, it is replaced in the response.
+     */
+    private void useUrl(String key, List<FileInfo> componentFiles, String url) {
+        if (pageKey != null && BundleRegistry.bind(pageKey, key, componentFiles)) {
+            return;
+        }
+
+        if (!url.equals(outputUrl)) {
+            RenderContext.current().replaceInResponse(outputUrl, url);
+        }
+    }
+
+    /**
+     * Gets the placeholder that is output instead of the url of the compressed
+     * file with the given extension when the url is not yet known
+     */
+    static String getUrlPlaceholder(String extension) {
+        return "__press_url" + extension + "__";
     }
 
     public List<FileInfo> getFileListOrder() {
-        String content = getResponseContent();
-        List<String> namesInOrder = getFilesInResponse(content);
+        List<String> namesInOrder = ResponseScanner.getFileRequests(pressRequestStart);
         List<FileInfo> filesInOrder = new ArrayList<FileInfo>(namesInOrder.size());
 
         // Do some sanity checking
@@ -238,67 +522,167 @@ public abstract class Compressor extends PlayPlugin {
         return filesInOrder;
     }
 
-    public void addFileListToCache(String cacheKey, List<FileInfo> originalList) {
-        List<FileInfo> newList = new ArrayList<FileInfo>();
-        for (FileInfo fileInfo : originalList) {
-            VirtualFile file = getVirtualFile(srcDir + fileInfo.fileName);
+    /**
+     * Records the list of files so that its compressed file can be generated
+     * when the application next starts
+     */
+    private void recordFileList(List<FileInfo> componentFiles) {
+        if (PluginConfig.pregenerate) {
+            BundlePregenerator.record(componentFiles, compressedDir, extension);
+        }
+    }
 
-            // Check the file exists
-            if (!file.exists()) {
-                String msg = "Attempt to add file '" + file.getRealFile().getAbsolutePath() + "' ";
-                msg += "to compression with " + tagName + " tag but file does not exist.";
-                throw new PressException(msg);
+    /**
+     * Gets the source file for each of the files in the list, checking that
+     * the file exists
+     */
+    private List<FileInfo> getComponentFiles(List<FileInfo> originalList) {
+        List<FileInfo> newList = new ArrayList<FileInfo>(originalList.size());
+        for (FileInfo fileInfo : originalList) {
+            // The file was found when it was added
+            VirtualFile file = fileInfo.file;
+            if (file == null) {
+                file = checkFileExists(fileInfo.fileName);
             }
 
             newList.add(new FileInfo(fileInfo.fileName, fileInfo.compress, file));
         }
 
-        // Add a mapping between the request key and the list of files that
-        // are compressed for the request
-        Cache.set(cacheKey, newList, PluginConfig.compressionKeyStorageTime);
+        return newList;
     }
 
     /**
-     * The request key is just the url - for the same url we should always
-     * return the same compressed javascript or css.
+     * Gets the compressed file for the given key, waiting for it to be
+     * generated on the generation pool as the compressed file actions do.
+     * Returns null if the key is not found.
      */
-    private String getRequestKey() {
-        String key = Request.current().path + Request.current().querystring + extension;
+    protected static VirtualFile getCompressedFile(FileCompressor compressor, String key,
+            String srcDir, String compressedDir, String extension) {
+        return getGenerated(getCompressedFileAsync(compressor, key, srcDir, compressedDir,
+                extension));
+    }
 
-        // Get a hash of the url to keep it short
-        String hashed = Crypto.passwordHash(key);
+    /**
+     * Gets the compressed file for the given key without holding the calling
+     * thread while it is generated. If the file needs to be generated, it is
+     * generated on the generation pool, and the returned promise is redeemed
+     * once it has been. Otherwise the promise is already redeemed. The
+     * promise is redeemed with null if the key is not found.
+     */
+    protected static F.Promise<VirtualFile> getCompressedFileAsync(FileCompressor compressor,
+            String key, String srcDir, String compressedDir, String extension) {
+        List<FileInfo> componentFiles = findComponentFiles(key, srcDir, extension);
+        VirtualFile file = null;
+        if (componentFiles != null) {
+            file = findCompressedFile(componentFiles, compressedDir, extension);
+            if (file == null) {
+                String filePath = getCompressedFilePath(componentFiles, compressedDir, extension);
+                FragmentCache fragments = new FragmentCache(compressedDir, extension);
+                return generateCompressedFileAsync(compressor, componentFiles,
+                        getVirtualFile(filePath), fragments, extension);
+            }
+        }
 
-        return lettersOnly(hashed);
+        F.Promise<VirtualFile> promise = new F.Promise<VirtualFile>();
+        promise.invoke(file);
+        return promise;
     }
 
+    /**
+     * Gets the list of component files for the given key, or null if it is
+     * not found
+     */
     @SuppressWarnings("unchecked")
-    protected static VirtualFile getCompressedFile(FileCompressor compressor, String key,
-            String compressedDir, String extension) {
-        List<FileInfo> componentFiles = (List<FileInfo>) Cache.get(key);
+    private static List<FileInfo> findComponentFiles(String key, String srcDir,
+            String extension) {
+        List<FileInfo> componentFiles;
+
+        // If the key is a stateless key, the list of files is encoded in the
+        // key itself. Otherwise get it from the lists registered by this
+        // server, or from the cache if it was registered by another server
+        String keyName = key.endsWith(extension) ? key.substring(0, key.length()
+                - extension.length()) : key;
+        if (BundleKey.isBundleKey(keyName)) {
+            componentFiles = BundleKey.decode(keyName, extension, srcDir);
+        } else {
+            componentFiles = BundleRegistry.get(key);
+            if (componentFiles == null) {
+                long start = ServerTiming.start();
+                componentFiles = (List<FileInfo>) Cache.get(key);
+                ServerTiming.record(ServerTiming.Phase.CACHE_GET, start);
+            }
+        }
 
         // If there was nothing found for the given request key, return null.
         // This shouldn't happen unless there was a very long delay between the
         // template being rendered and the compressed file being requested
         if (componentFiles == null) {
-            return null;
+            PressMetrics.keyMisses.incrementAndGet();
         }
-
-        return getCompressedFile(compressor, componentFiles, compressedDir, extension);
+        return componentFiles;
     }
 
     protected static VirtualFile getCompressedFile(FileCompressor compressor,
             List<FileInfo> componentFiles, String compressedDir, String extension) {
-        String joinedFileNames = JavaExtensions.join(FileInfo.getFileNames(componentFiles), "");
-        String fileName = Crypto.passwordHash(joinedFileNames);
-        fileName = lettersOnly(fileName);
-        String filePath = compressedDir + fileName + extension;
+        VirtualFile file = findCompressedFile(componentFiles, compressedDir, extension);
+        if (file != null) {
+            return file;
+        }
+
+        String filePath = getCompressedFilePath(componentFiles, compressedDir, extension);
+        file = getVirtualFile(filePath);
+        FragmentCache fragments = new FragmentCache(compressedDir, extension);
+        long start = ServerTiming.start();
+        try {
+            return generateCompressedFile(compressor, componentFiles, file, fragments, extension,
+                    false);
+        } finally {
+            ServerTiming.record(ServerTiming.Phase.GENERATE, start);
+        }
+    }
+
+    /**
+     * Gets the compressed file for the given list of component files if it
+     * exists and can be used, or null if it needs to be generated
+     */
+    private static VirtualFile findCompressedFile(List<FileInfo> componentFiles,
+            String compressedDir, String extension) {
+        String filePath = getCompressedFilePath(componentFiles, compressedDir, extension);
+
+        // If the file was generated in advance and listed in a manifest, use
+        // it as it is
+        if (PluginConfig.precompressed) {
+            File realFile = Play.getFile(filePath);
+            if (BundleManifest.findTrusted(realFile) != null) {
+                PressMetrics.cacheHits.incrementAndGet();
+                return VirtualFile.open(realFile);
+            }
+        }
+
+        // If the file is held in memory and the cache is always used, we don't
+        // need to check the file system at all
+        if (PluginConfig.cache.equals(CachingStrategy.Always) && BundleCache.enabled()) {
+            File realFile = Play.getFile(filePath);
+            if (BundleCache.contains(realFile)) {
+                PressMetrics.cacheHits.incrementAndGet();
+                return VirtualFile.open(realFile);
+            }
+        }
+
         VirtualFile file = getVirtualFile(filePath);
 
         // If the file already exists in the cache, return it
-        if (useCache(componentFiles, file, extension)) {
+        long start = ServerTiming.start();
+        boolean useCache = useCache(componentFiles, file, extension);
+        ServerTiming.record(ServerTiming.Phase.VALIDATE, start);
+        if (useCache) {
             String absolutePath = file.getRealFile().getAbsolutePath();
-            if (file.exists()) {
+
+            // With the caching strategy Change, useCache() has already checked
+            // that the file exists
+            if (PluginConfig.cache.equals(CachingStrategy.Change) || file.exists()) {
                 PressLogger.trace("Using existing compressed file %s", absolutePath);
+                PressMetrics.cacheHits.incrementAndGet();
                 return file;
             } else {
                 PressLogger.trace("Compressed file %s does not yet exist", absolutePath);
@@ -307,77 +691,117 @@ public abstract class Compressor extends PlayPlugin {
 
         PressLogger.trace("Generating compressed file %s from %d component files", file.getName(),
                 componentFiles.size());
-
-        //
-        // We create a temp file to which the output will be written to first,
-        // and then rename it to the target file name (because compression can
-        // take a while)
-        // If the temp file is already being written by another thread, this
-        // method will block until it is complete and then return null
-        //
-        File tmp = getTmpOutputFile(file);
-        if (tmp == null) {
-            PressLogger.trace("Compressed file was generated by another thread");
+        if (file.exists()) {
+            PressMetrics.cacheStale.incrementAndGet();
         } else {
-            writeCompressedFile(compressor, componentFiles, file, tmp);
+            PressMetrics.cacheMisses.incrementAndGet();
         }
+        return null;
+    }
 
-        return file;
+    /**
+     * Generates the compressed file for the given list of component files
+     * again, whether or not the existing file is up to date. Used when a
+     * component file is known to have changed.
+     */
+    protected static VirtualFile regenerateCompressedFile(FileCompressor compressor,
+            List<FileInfo> componentFiles, String compressedDir, String extension) {
+        String filePath = getCompressedFilePath(componentFiles, compressedDir, extension);
+        VirtualFile file = getVirtualFile(filePath);
+        FragmentCache fragments = new FragmentCache(compressedDir, extension);
+        return generateCompressedFile(compressor, componentFiles, file, fragments, extension,
+                true);
     }
 
-    private static void writeCompressedFile(FileCompressor compressor,
-            List<FileInfo> componentFiles, VirtualFile file, File tmp) {
+    /**
+     * Gets the path of the compressed file for the given list of component
+     * files, relative to the application root
+     */
+    protected static String getCompressedFilePath(List<FileInfo> componentFiles,
+            String compressedDir, String extension) {
+        String fileName = BundleRegistry.getId(componentFiles);
 
-        // Create the directory if it doesn't already exist
-        VirtualFile dir = VirtualFile.open(file.getRealFile().getParent());
-        if (!dir.exists()) {
-            if (!dir.getRealFile().mkdirs()) {
-                throw new PressException("Could not create directory for compressed file output "
-                        + file.getRealFile().getAbsolutePath());
-            }
+        // Spread the compressed files over sub-directories named after the
+        // first two characters of the file name, to keep directories small
+        if (PluginConfig.subdirectories) {
+            return compressedDir + fileName.substring(0, 2) + "/" + fileName + extension;
         }
+        return compressedDir + fileName + extension;
+    }
+
+    private static void writeCompressedFile(FileCompressor compressor,
+            List<FileInfo> componentFiles, VirtualFile file, File tmp, FragmentCache fragments,
+            String extension) {
 
         Writer out = null;
         try {
-            // If there is a temp file specified, we write to that first
-            // and then move it to the final destination file
-            File destFile = tmp != null ? tmp : file.getRealFile();
+            // The output is written to the temp file first and then moved to
+            // the final destination file, so that a partially written file is
+            // never served
+            File destFile = tmp;
 
             // Compress the component files and write the output to the
-            // file
-            out = new BufferedWriter(new FileWriter(destFile));
+            // file, keeping a hash of the output as it is written
+            MessageDigest digest = Hashes.sha1();
+            OutputStream fileOut = new DigestOutputStream(new FileOutputStream(destFile), digest);
+            out = new BufferedWriter(new OutputStreamWriter(fileOut));
 
             // Add the last modified dates of each component file to the start
             // of the compressed file so that we can later check if any of them
             // have changed.
-            String lastModifiedDates = createFileHeader(componentFiles);
-            out.append(lastModifiedDates);
+            String timestamps = getFileTimestamps(componentFiles);
+            out.append(createFileHeader(timestamps));
 
             long timeStart = System.currentTimeMillis();
-            for (FileInfo componentFile : componentFiles) {
-                compress(compressor, componentFile, out);
+            long nanoStart = System.nanoTime();
+            Object event = PressEvents.begin(PressEvents.Type.GENERATION);
+            List<String> compressed = compressFragments(compressor, componentFiles, fragments);
+            for (String fragment : compressed) {
+                out.write(fragment);
             }
             out.flush();
             out.close();
             long timeAfter = System.currentTimeMillis();
             PressLogger.trace("Time to compress files for '%s': %d milli-seconds", file
                     .getRealFile().getName(), (timeAfter - timeStart));
+            long bytesIn = 0;
+            for (FileInfo fileInfo : componentFiles) {
+                bytesIn += fileInfo.file.length();
+            }
+            PressMetrics.recordGeneration(extension, System.nanoTime() - nanoStart, bytesIn,
+                    destFile.length());
+            PressEvents.endGeneration(event, BundleRegistry.getId(componentFiles),
+                    componentFiles.size(), bytesIn, destFile.length());
+
+            // Write the gzipped version of the output next to the destination
+            // file, before the destination file itself is published
+            if (PluginConfig.gzipEnabled) {
+                writeGzipFile(destFile, getGzipFile(file.getRealFile()));
+            }
 
-            // If the output was written to a temporary file, rename it to
-            // overwrite the true destination file.
-            if (tmp != null) {
-                String msg = "Output written to temporary file\n%s\n";
-                msg += "Moving from tmp path to final path:\n%s";
-                String tmpPath = tmp.getAbsolutePath();
-                String finalPath = file.getRealFile().getAbsolutePath();
-                PressLogger.trace(msg, tmpPath, finalPath);
-                if (!tmp.renameTo(file.getRealFile())) {
-                    String ex = "Successfully wrote compressed file to temporary path\n" + tmpPath;
-                    ex += "\nBut could not move it to final path\n" + finalPath;
-                    throw new PressException(ex);
-                }
+            // Rename the temporary file to overwrite the true destination
+            // file. Delete any previous version first if the rename fails, as
+            // renameTo won't overwrite a file on some platforms
+            String msg = "Output written to temporary file\n%s\n";
+            msg += "Moving from tmp path to final path:\n%s";
+            String tmpPath = tmp.getAbsolutePath();
+            String finalPath = file.getRealFile().getAbsolutePath();
+            PressLogger.trace(msg, tmpPath, finalPath);
+            if (!tmp.renameTo(file.getRealFile())
+                    && !(file.getRealFile().delete() && tmp.renameTo(file.getRealFile()))) {
+                String ex = "Successfully wrote compressed file to temporary path\n" + tmpPath;
+                ex += "\nBut could not move it to final path\n" + finalPath;
+                throw new PressException(ex);
             }
 
+            // Record the hash of the new file, and remove any previous
+            // version of the file from memory
+            BundleManifest.put(file.getRealFile(), Hashes.toHex(digest.digest()),
+                    FileInfo.toLine(componentFiles));
+            BundleCache.invalidate(file.getRealFile());
+            BundleIndex.put(file.getRealFile(), FileInfo.toLine(componentFiles), timestamps,
+                    timeStart);
+
             PressLogger.trace("Compressed file generation complete:");
             PressLogger.trace(file.relativePath());
 
@@ -394,69 +818,423 @@ public abstract class Compressor extends PlayPlugin {
         }
     }
 
-    private static File getTmpOutputFile(VirtualFile file) {
-        String origPath = file.getRealFile().getAbsolutePath();
-        File tmp = new File(origPath + ".tmp");
+    /**
+     * Gets the file where the gzipped version of the given compressed file is
+     * stored
+     */
+    public static File getGzipFile(File compressedFile) {
+        return new File(compressedFile.getAbsolutePath() + GZIP_EXTENSION);
+    }
 
-        // If the temp file already exists
-        if (tmp.exists()) {
-            long tmpLastModified = tmp.lastModified();
-            long now = System.currentTimeMillis();
+    /**
+     * Writes a gzipped copy of the source file to the destination file, using
+     * the maximum compression level. As with the compressed file, the output
+     * is written to a temporary file first and then moved into place.
+     */
+    private static void writeGzipFile(File src, File dest) throws IOException {
+        File tmp = new File(dest.getAbsolutePath() + ".tmp");
+        InputStream in = new FileInputStream(src);
+        OutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new FileOutputStream(tmp)) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
 
-            // If the temp file is older than the destination file, or if it is
-            // older than the allowed compression time, it must be a remnant of
-            // a previous server crash so we can overwrite it
-            if (tmpLastModified < file.lastModified()) {
-                return tmp;
+            byte[] buffer = new byte[8096];
+            int read = 0;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
             }
-            if (now - tmpLastModified > PluginConfig.maxCompressionTimeMillis) {
-                return tmp;
+            out.close();
+            out = null;
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
             }
+        }
 
-            // Otherwise it must be currently being written by another thread,
-            // so wait for it to finish
-            while (tmp.exists()) {
-                if (System.currentTimeMillis() - now > PluginConfig.maxCompressionTimeMillis) {
-                    throw new PressException("Timeout waiting for compressed file to be generated");
-                }
+        // Delete any previous version first, as renameTo won't overwrite a
+        // file on some platforms
+        if (!tmp.renameTo(dest) && !(dest.delete() && tmp.renameTo(dest))) {
+            tmp.delete();
+            throw new PressException("Could not move gzipped file to final path\n"
+                    + dest.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Generates the compressed file, making sure that it is only generated
+     * once at a time. If another thread in this JVM is already generating the
+     * same file, this method waits for that thread to finish and returns its
+     * result. Other processes that share the output directory are kept out by
+     * a lock on a file next to the compressed file.
+     *
+     * @param regenerate whether to generate the file even if it has been
+     *            generated since the caller checked it
+     */
+    private static VirtualFile generateCompressedFile(FileCompressor compressor,
+            List<FileInfo> componentFiles, VirtualFile file, FragmentCache fragments,
+            String extension, boolean regenerate) {
+
+        Generation task = new Generation(compressor, componentFiles, file, fragments, extension,
+                regenerate);
+
+        // If no other thread is generating the file, generate it in this one.
+        // Otherwise wait for the other thread to finish.
+        Generation inProgress = inFlight.putIfAbsent(task.path, task);
+        if (inProgress == null) {
+            task.run();
+            inProgress = task;
+        } else {
+            PressLogger.trace("Waiting for compressed file %s to be generated by another thread",
+                    file.getName());
+            PressMetrics.waiters.incrementAndGet();
+            PressMetrics.currentWaiters.incrementAndGet();
+        }
+
+        try {
+            inProgress.get(PluginConfig.maxCompressionTimeMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new PressException("Timeout waiting for compressed file to be generated");
+        } catch (InterruptedException e) {
+            throw new UnexpectedException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UnexpectedException(e.getCause());
+        } finally {
+            if (inProgress != task) {
+                PressMetrics.currentWaiters.decrementAndGet();
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Generates the compressed file on the generation pool, returning a
+     * promise that is redeemed once it has been generated. If the file is
+     * already being generated, the promise is redeemed when that generation
+     * finishes. If the pool is busy and its queue is full, the file is
+     * generated in the calling thread. The promise fails if the file isn't
+     * generated within the maximum compression time.
+     */
+    private static F.Promise<VirtualFile> generateCompressedFileAsync(
+            FileCompressor compressor, List<FileInfo> componentFiles, VirtualFile file,
+            FragmentCache fragments, String extension) {
+
+        Generation task = new Generation(compressor, componentFiles, file, fragments, extension,
+                false);
+        Generation inProgress = inFlight.putIfAbsent(task.path, task);
+        if (inProgress == null) {
+            PressLogger.trace("Generating compressed file %s in the background", file.getName());
+            long start = ServerTiming.start();
+            getGenerationExecutor().execute(task);
+            if (task.ranInCaller) {
+                // The queue was full, so the file was generated in this thread
+                ServerTiming.record(ServerTiming.Phase.GENERATE, start);
+                return task.promise;
+            }
+            return waitFor(task, false);
+        }
+
+        PressLogger.trace("Waiting for compressed file %s to be generated by another thread",
+                file.getName());
+        PressMetrics.waiters.incrementAndGet();
+        return waitFor(inProgress, true);
+    }
+
+    /**
+     * Gets a promise that is redeemed when the given generation finishes, or
+     * that fails if it doesn't finish within the maximum compression time.
+     * The generation itself carries on, so that later requests can use the
+     * file.
+     *
+     * @param waiter
+     *            whether the request is waiting for a generation started by
+     *            another request
+     */
+    private static F.Promise<VirtualFile> waitFor(Generation generation, final boolean waiter) {
+        final F.Promise<VirtualFile> result = new F.Promise<VirtualFile>();
+        final TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                result.invokeWithException(new PressException(
+                        "Timeout waiting for compressed file to be generated"));
+            }
+        };
 
+        if (waiter) {
+            PressMetrics.currentWaiters.incrementAndGet();
+        }
+        scheduleTimeout(timeout);
+        result.onRedeem(new F.Action<F.Promise<VirtualFile>>() {
+            public void invoke(F.Promise<VirtualFile> redeemed) {
+                timeout.cancel();
+                if (waiter) {
+                    PressMetrics.currentWaiters.decrementAndGet();
+                }
+            }
+        });
+        generation.promise.onRedeem(new F.Action<F.Promise<VirtualFile>>() {
+            public void invoke(F.Promise<VirtualFile> generated) {
                 try {
-                    Thread.sleep(1000);
+                    result.invoke(generated.get());
+                } catch (ExecutionException e) {
+                    result.invokeWithException(e.getCause());
                 } catch (InterruptedException e) {
+                    result.invokeWithException(e);
                 }
             }
+        });
 
-            // Return null to indicate that the file was already generated by
-            // another thread
-            return null;
+        return result;
+    }
+
+    private static synchronized void scheduleTimeout(TimerTask timeout) {
+        if (timeoutTimer == null) {
+            timeoutTimer = new Timer("press-generation-timeout", true);
+        }
+        timeoutTimer.schedule(timeout, PluginConfig.maxCompressionTimeMillis);
+    }
+
+    /**
+     * Gets the file a promise returned by getCompressedFileAsync() was
+     * redeemed with, waiting for it if necessary
+     */
+    public static VirtualFile getGenerated(F.Promise<VirtualFile> generated) {
+        try {
+            return generated.get();
+        } catch (InterruptedException e) {
+            throw new UnexpectedException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UnexpectedException(e.getCause());
         }
+    }
+
+    /**
+     * The generation of a compressed file. When it finishes, it is removed
+     * from the files in flight, and its promise is redeemed with the file or
+     * with the exception that stopped it.
+     * <p>
+     * A generation of the same file may have finished between the moment the
+     * caller found that the file needed to be generated and the moment this
+     * generation was registered, so unless the file is being regenerated, it
+     * is checked again before it is written.
+     */
+    static class Generation extends FutureTask<Void> {
+        final String path;
+        final VirtualFile file;
+        final F.Promise<VirtualFile> promise = new F.Promise<VirtualFile>();
+
+        // Whether the generation was run by the thread that submitted it,
+        // because the queue was full
+        volatile boolean ranInCaller = false;
+
+        Generation(final FileCompressor compressor, final List<FileInfo> componentFiles,
+                final VirtualFile file, final FragmentCache fragments, final String extension,
+                final boolean regenerate) {
+            super(new Callable<Void>() {
+                public Void call() throws Exception {
+                    if (!regenerate && useCache(componentFiles, file, extension)
+                            && file.exists()) {
+                        PressLogger.trace("Compressed file %s has just been generated",
+                                file.getName());
+                        return null;
+                    }
+
+                    writeCompressedFileLocked(compressor, componentFiles, file, fragments,
+                            extension);
+                    return null;
+                }
+            });
+            this.path = file.getRealFile().getAbsolutePath();
+            this.file = file;
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(path, this);
+            try {
+                get();
+                promise.invoke(file);
+            } catch (ExecutionException e) {
+                promise.invokeWithException(e.getCause());
+            } catch (CancellationException e) {
+                promise.invokeWithException(new PressException(
+                        "Generation of compressed file " + file.getName() + " was stopped"));
+            } catch (Exception e) {
+                promise.invokeWithException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the compressed file while holding the lock file for it, so that
+     * processes sharing the output directory don't write it at the same time.
+     * The lock file is removed once the file has been written.
+     */
+    private static void writeCompressedFileLocked(FileCompressor compressor,
+            List<FileInfo> componentFiles, VirtualFile file, FragmentCache fragments,
+            String extension) throws IOException {
+
+        File realFile = file.getRealFile();
+        File dir = realFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new PressException("Could not create directory for compressed file output "
+                    + realFile.getAbsolutePath());
+        }
+
+        File lockPath = new File(realFile.getAbsolutePath() + LOCK_EXTENSION);
+        RandomAccessFile lockFile = null;
+        FileLock lock = null;
+        boolean waited = false;
+        try {
+            while (lock == null) {
+                lockFile = new RandomAccessFile(lockPath, "rw");
+                lock = lockFile.getChannel().tryLock();
+                if (lock == null) {
+                    // Another process is generating the file. Once it's done,
+                    // check whether its output can be used
+                    PressLogger.trace("Waiting for compressed file %s to be generated by "
+                            + "another process", realFile.getName());
+                    Object event = PressEvents.begin(PressEvents.Type.LOCK_WAIT);
+                    lock = acquireLock(lockFile.getChannel());
+                    PressEvents.endLockWait(event, realFile.getName());
+                    waited = true;
+                }
+
+                // If the process that held the lock removed the lock file,
+                // another process may already have created a new one, so lock
+                // that instead
+                if (lockFile.length() > 0) {
+                    lock.release();
+                    lock = null;
+                    lockFile.close();
+                    lockFile = null;
+                }
+            }
+
+            if (waited && useCache(componentFiles, file, extension) && file.exists()) {
+                // The file was generated by the other process, so forget
+                // anything recorded about the previous version
+                BundleManifest.remove(realFile);
+                BundleCache.invalidate(realFile);
+                BundleIndex.remove(realFile);
+                return;
+            }
+
+            File tmp = new File(realFile.getAbsolutePath() + ".tmp");
+            writeCompressedFile(compressor, componentFiles, file, tmp, fragments, extension);
+        } finally {
+            if (lock != null) {
+                removeLockFile(lockPath, lockFile);
+                lock.release();
+            }
+            if (lockFile != null) {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the lock file while its lock is held, so that lock files don't
+     * accumulate in the output directory. The file is marked as removed
+     * first, as processes that opened it before it was removed will still
+     * lock it once the lock is released.
+     */
+    private static void removeLockFile(File lockPath, RandomAccessFile lockFile) {
+        try {
+            lockFile.write(1);
+            if (!lockPath.delete()) {
+                // The file can't be deleted while it's open on some systems
+                // (eg Windows), so leave it in place to be used again
+                lockFile.setLength(0);
+            }
+        } catch (IOException e) {
+            PressLogger.warn("Could not remove lock file %s: %s", lockPath, e);
+        }
+    }
+
+    /**
+     * Waits for the lock held by another process to be released, for at most
+     * the maximum compression time
+     */
+    private static FileLock acquireLock(FileChannel channel) throws IOException {
+        long deadline = System.currentTimeMillis() + PluginConfig.maxCompressionTimeMillis;
+        long wait = 10;
+        while (true) {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+
+            if (System.currentTimeMillis() > deadline) {
+                throw new PressException("Timeout waiting for compressed file to be generated");
+            }
 
-        return tmp;
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new UnexpectedException(e);
+            }
+            wait = Math.min(wait * 2, 200);
+        }
     }
 
     public static List<File> clearCache(String compressedDir, String extension) {
         PressLogger.trace("Deleting cached files");
 
-        // Get the cache directory
-        VirtualFile dir = getVirtualFile(compressedDir);
-        if (!dir.exists() || !dir.isDirectory()) {
-            return new ArrayList<File>();
+        // Get the list of compressed files from the journal. If there is no
+        // journal, look for compressed files in the output directory
+        List<File> files = BundleManifest.listFiles(compressedDir, extension);
+        if (files == null) {
+            files = findCompressedFiles(compressedDir, extension);
         }
 
-        // Get a list of all compressed files, and delete them
-        FileFilter compressedFileFilter = new PressFileFilter(extension);
-        File[] files = dir.getRealFile().listFiles(compressedFileFilter);
-        List<File> deleted = new ArrayList<File>(files.length);
+        // Delete the compressed files
+        List<File> deleted = new ArrayList<File>(files.size());
         for (File file : files) {
             if (file.delete()) {
                 deleted.add(file);
             }
+            getGzipFile(file).delete();
+            BundleCache.invalidate(file);
+            BundleIndex.remove(file);
         }
+        BundleManifest.clear(compressedDir, extension);
+        RenderPlans.clear();
 
         PressLogger.trace("Deleted %d cached files", deleted.size());
         return deleted;
     }
 
+    /**
+     * Gets the compressed files in the output directory by opening each file
+     * in the directory and checking whether it has a press header
+     */
+    private static List<File> findCompressedFiles(String compressedDir, String extension) {
+        VirtualFile dir = getVirtualFile(compressedDir);
+        if (!dir.exists() || !dir.isDirectory()) {
+            return new ArrayList<File>();
+        }
+
+        FileFilter compressedFileFilter = new PressFileFilter(extension);
+        File[] files = dir.getRealFile().listFiles(compressedFileFilter);
+        List<File> found = new ArrayList<File>(files.length);
+        for (File file : files) {
+            found.add(file);
+        }
+        return found;
+    }
+
     private static boolean useCache(List<FileInfo> componentFiles, VirtualFile file,
             String extension) {
         PressLogger.trace("Caching strategy is %s", PluginConfig.cache);
@@ -468,7 +1246,9 @@ public abstract class Compressor extends PlayPlugin {
             return true;
         }
 
+        Object event = PressEvents.begin(PressEvents.Type.VALIDATION);
         boolean changed = haveComponentFilesChanged(componentFiles, file);
+        PressEvents.endValidation(event, file.getName(), changed);
         if (changed) {
             PressLogger.trace("Component %s files have changed", extension);
         } else {
@@ -479,50 +1259,44 @@ public abstract class Compressor extends PlayPlugin {
     }
 
     private static boolean haveComponentFilesChanged(List<FileInfo> componentFiles, VirtualFile file) {
+        File realFile = file.getRealFile();
+        String components = FileInfo.toLine(componentFiles);
+        long now = System.currentTimeMillis();
+
+        // If the component files were checked recently, there's no need to
+        // check them again
+        BundleIndex.Entry entry = BundleIndex.get(realFile);
+        if (entry != null && !entry.isStale(now) && entry.components.equals(components)) {
+            return false;
+        }
 
         // Check if the file exists
         if (!file.exists()) {
+            BundleIndex.remove(realFile);
             return true;
         }
 
-        // Check if the file has a compression header
-        String header = extractHeaderContent(file.getRealFile());
-        if (header == null) {
-            return true;
-        }
-
-        // Check if the number of files has changed
-        String[] lastModifieds = header.split(":");
-        if (lastModifieds.length != componentFiles.size()) {
-            return true;
+        // Get the compress flags and last modified dates the file was
+        // generated with. They only need to be read from the file header if
+        // the file has been written since they were recorded
+        String header;
+        if (entry != null && entry.lastModified == realFile.lastModified()) {
+            header = entry.timestamps;
+        } else {
+            header = extractHeaderContent(realFile);
+            if (header == null) {
+                return true;
+            }
         }
 
-        try {
-            // Check each of the stored last modified dates against the file's
-            // current last modified date
-            for (int i = 0; i < componentFiles.size(); i++) {
-                FileInfo fileInfo = componentFiles.get(i);
-
-                // Check if the file was compressed and is now uncompressed,
-                // or vice versa
-                char compress = fileInfo.compress ? 'c' : 'u';
-                if (lastModifieds[i].charAt(0) != compress) {
-                    return true;
-                }
-
-                // Check the timestamp
-                String lastMod = lastModifieds[i].substring(1);
-                long lastModified = Long.parseLong(lastMod);
-                if (fileInfo.file.lastModified() != lastModified) {
-                    return true;
-                }
-            }
-        } catch (Exception e) {
-            // If there's any sort of problem reading the header, we can just
-            // overwrite the file
+        // Check whether the list of files, the compress flags or the last
+        // modified dates have changed
+        if (!header.equals(getFileTimestamps(componentFiles))) {
+            BundleIndex.remove(realFile);
             return true;
         }
 
+        BundleIndex.put(realFile, components, header, now);
         return false;
     }
 
@@ -543,6 +1317,18 @@ public abstract class Compressor extends PlayPlugin {
      * 
      */
     public static String createFileHeader(List<FileInfo> componentFiles) {
+        return createFileHeader(getFileTimestamps(componentFiles));
+    }
+
+    private static String createFileHeader(String timestamps) {
+        return "/*" + PRESS_SIGNATURE + "|" + timestamps + "*/\n";
+    }
+
+    /**
+     * Gets the ':' separated list of compress flags and last modified dates
+     * of the component files, as stored in the file header
+     */
+    private static String getFileTimestamps(List<FileInfo> componentFiles) {
         List<String> timestamps = new ArrayList<String>(componentFiles.size());
 
         for (int i = 0; i < componentFiles.size(); i++) {
@@ -552,106 +1338,272 @@ public abstract class Compressor extends PlayPlugin {
             timestamps.add(compress + lastMod);
         }
 
-        return "/*" + PRESS_SIGNATURE + "|" + JavaExtensions.join(timestamps, ":") + "*/\n";
+        return JavaExtensions.join(timestamps, ":");
+    }
+
+    /**
+     * Gets the time at which the most recently modified of the given
+     * component files was modified
+     */
+    static long getLastModified(List<FileInfo> componentFiles) {
+        long lastModified = 0;
+        for (FileInfo fileInfo : componentFiles) {
+            lastModified = Math.max(lastModified, fileInfo.file.lastModified());
+        }
+        return lastModified;
     }
 
     public static String extractHeaderContent(File file) {
         try {
             BufferedReader reader = new BufferedReader(new FileReader(file));
-            String firstLine = reader.readLine();
-            Matcher matcher = HEADER_PATTERN.matcher(firstLine);
-            if (matcher.matches()) {
-                return matcher.group(1);
+            try {
+                String firstLine = reader.readLine();
+                if (firstLine == null) {
+                    return null;
+                }
+
+                Matcher matcher = HEADER_PATTERN.matcher(firstLine);
+                if (matcher.matches()) {
+                    return matcher.group(1);
+                }
+                return null;
+            } finally {
+                reader.close();
             }
-            return null;
 
         } catch (IOException e) {
             throw new UnexpectedException(e);
         }
     }
 
-    private static void compress(FileCompressor compressor, FileInfo fileInfo, Writer out)
-            throws Exception {
+    /**
+     * Compresses each of the component files, returning the compressed output
+     * of each file in the same order as the component files. When there is
+     * more than one file, the files are compressed concurrently on the shared
+     * compression pool.
+     */
+    private static List<String> compressFragments(final FileCompressor compressor,
+            List<FileInfo> componentFiles, final FragmentCache fragmentCache) throws Exception {
+
+        List<String> fragments = new ArrayList<String>(componentFiles.size());
+        if (componentFiles.size() == 1 || PluginConfig.compressionThreads <= 1) {
+            for (FileInfo componentFile : componentFiles) {
+                fragments.add(compress(compressor, componentFile, fragmentCache));
+            }
+            return fragments;
+        }
+
+        List<Future<String>> futures = new ArrayList<Future<String>>(componentFiles.size());
+        for (final FileInfo componentFile : componentFiles) {
+            futures.add(getCompressionExecutor().submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return compress(compressor, componentFile, fragmentCache);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + PluginConfig.maxCompressionTimeMillis;
+        try {
+            for (Future<String> future : futures) {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                fragments.add(future.get(remaining, TimeUnit.MILLISECONDS));
+            }
+        } catch (TimeoutException e) {
+            throw new PressException("Timeout waiting for component files to be compressed");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw new UnexpectedException(e.getCause());
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return fragments;
+    }
+
+    private static String compress(FileCompressor compressor, FileInfo fileInfo,
+            FragmentCache fragmentCache) throws Exception {
         String fileName = fileInfo.file.getName();
+
+        // If the file should be compressed, check if its compressed output is
+        // already in the fragment cache
+        if (fileInfo.compress && useFragmentCache()) {
+            return compressFragment(compressor, fileInfo, fragmentCache);
+        }
+
+        Object event = PressEvents.begin(PressEvents.Type.FRAGMENT);
         BufferedReader in = new BufferedReader(new FileReader(fileInfo.file.getRealFile()));
+        StringWriter out = new StringWriter();
+        long nanos = -1;
 
-        // If the file should be compressed
-        if (fileInfo.compress) {
-            // Invoke the compressor
-            PressLogger.trace("Compressing %s", fileName);
-            compressor.compress(fileName, in, out);
-        } else {
-            // Otherwise just copy it
-            PressLogger.trace("Adding already compressed file %s", fileName);
-            write(in, out);
-            compressor.compress(fileName, in, out);
+        try {
+            // If the file should be compressed
+            if (fileInfo.compress) {
+                // Invoke the compressor
+                PressLogger.trace("Compressing %s", fileName);
+                long start = System.nanoTime();
+                compressor.compress(fileName, in, out);
+                nanos = System.nanoTime() - start;
+            } else {
+                // Otherwise just copy it
+                PressLogger.trace("Adding already compressed file %s", fileName);
+                write(in, out);
+                compressor.compress(fileName, in, out);
+            }
+        } finally {
+            in.close();
         }
-    }
 
-    public static void write(Reader reader, Writer writer) throws IOException {
-        int read = 0;
-        char[] buffer = new char[8096];
-        while ((read = reader.read(buffer)) > 0) {
-            writer.write(buffer, 0, read);
+        String compressed = out.toString();
+        if (nanos >= 0) {
+            CompressionProfile.record(fileInfo.fileName, nanos, fileInfo.file.length(),
+                    compressed);
         }
+        PressEvents.endFragment(event, fileName, false, fileInfo.file.length(), compressed
+                .length());
+        return compressed;
     }
 
-    /**
-     * Converts any non-letter characters in the given string to letters
-     */
-    private static String lettersOnly(String hashed) {
-        char[] chars = hashed.toCharArray();
-        for (int i = 0; i < chars.length; i++) {
-            if (!Character.isLetter(chars[i])) {
-                chars[i] = (char) ((int) 'A' + (int) chars[i] % 26);
-            }
+    private static String compressFragment(FileCompressor compressor, FileInfo fileInfo,
+            FragmentCache fragmentCache) throws Exception {
+        String fileName = fileInfo.file.getName();
+        Object event = PressEvents.begin(PressEvents.Type.FRAGMENT);
+        byte[] content = FileUtils.readFileToByteArray(fileInfo.file.getRealFile());
+        String key = FragmentCache.getKey(content, compressor.getOptions());
+
+        String compressed = fragmentCache.get(key);
+        if (compressed != null) {
+            PressLogger.trace("Using cached compressed fragment for %s", fileName);
+            PressEvents.endFragment(event, fileName, true, content.length, compressed.length());
+            return compressed;
         }
 
-        return new String(chars);
+        PressLogger.trace("Compressing %s", fileName);
+        Reader in = new InputStreamReader(new ByteArrayInputStream(content));
+        StringWriter out = new StringWriter();
+        long start = System.nanoTime();
+        compressor.compress(fileName, in, out);
+        long nanos = System.nanoTime() - start;
+
+        compressed = out.toString();
+        CompressionProfile.record(fileInfo.fileName, nanos, content.length, compressed);
+        fragmentCache.put(key, compressed);
+        PressEvents.endFragment(event, fileName, false, content.length, compressed.length());
+        return compressed;
+    }
+
+    private static boolean useFragmentCache() {
+        return PluginConfig.fragmentCacheEnabled
+                && !PluginConfig.cache.equals(CachingStrategy.Never);
     }
 
     /**
-     * Get the content of the response sent to the client as a String
+     * Deletes compressed fragments that have not been used for longer than the
+     * configured fragment lifetime
      */
-    protected static String getResponseContent() {
-        try {
-            String content = (String) Request.current().args.get("responseString");
-            if (content == null) {
-                content = Response.current.get().out.toString("utf-8");
-                Request.current().args.put("responseString", content);
-            }
-            return content;
-        } catch (UnsupportedEncodingException e) {
-            throw new UnexpectedException(e);
-        }
+    public static int pruneFragments(String compressedDir, String extension) {
+        long maxAgeMillis = Time.parseDuration(PluginConfig.fragmentLifetime) * 1000L;
+        return new FragmentCache(compressedDir, extension).prune(maxAgeMillis);
     }
 
-    protected String getFileRequestSignature(String fileName) {
-        return pressRequestStart + fileName + pressRequestEnd;
+    private static synchronized ExecutorService getCompressionExecutor() {
+        if (compressionExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "press-compressor-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+
+            PressLogger.trace("Starting compression pool with %d threads",
+                    PluginConfig.compressionThreads);
+            compressionExecutor = Executors.newFixedThreadPool(PluginConfig.compressionThreads,
+                    threadFactory);
+        }
+
+        return compressionExecutor;
     }
 
-    protected List<String> getFilesInResponse(String content) {
-        List<String> filesInOrder = new ArrayList<String>();
+    private static synchronized ExecutorService getGenerationExecutor() {
+        if (generationExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "press-generator-"
+                            + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+
+            // When the queue is full, the file is generated in the thread that
+            // requested it, which slows down requests for new files rather
+            // than queueing an unbounded amount of work. If the pool has been
+            // shut down the generation is cancelled, so that the requests
+            // waiting for it are resumed.
+            PressLogger.trace("Starting generation pool with %d threads",
+                    PluginConfig.generationThreads);
+            generationExecutor = new ThreadPoolExecutor(PluginConfig.generationThreads,
+                    PluginConfig.generationThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(PluginConfig.generationQueueSize),
+                    threadFactory, new RejectedExecutionHandler() {
+                        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                            if (executor.isShutdown()) {
+                                ((Future<?>) task).cancel(false);
+                            } else {
+                                ((Generation) task).ranInCaller = true;
+                                task.run();
+                            }
+                        }
+                    });
+        }
 
-        int startIndex = content.indexOf(pressRequestStart);
-        while (startIndex != -1) {
-            int endIndex = content.indexOf(pressRequestEnd, startIndex);
-            if (endIndex == -1) {
-                return filesInOrder;
-            }
+        return generationExecutor;
+    }
 
-            int fileNameStartIndex = startIndex + pressRequestStart.length();
-            String foundFileName = content.substring(fileNameStartIndex, endIndex);
-            filesInOrder.add(foundFileName);
+    /**
+     * Stops the threads used for compressing component files and for
+     * generating compressed files. The pools will be recreated the next time
+     * they are needed.
+     */
+    public static synchronized void shutdownCompressionExecutor() {
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdownNow();
+            compressionExecutor = null;
+        }
+        if (generationExecutor != null) {
+            // Fail the generations that haven't started, so that the requests
+            // waiting for them are resumed
+            for (Runnable task : generationExecutor.shutdownNow()) {
+                ((Future<?>) task).cancel(false);
+            }
+            generationExecutor = null;
+        }
+        if (timeoutTimer != null) {
+            timeoutTimer.cancel();
+            timeoutTimer = null;
+        }
+    }
 
-            startIndex = content.indexOf(pressRequestStart, endIndex);
+    public static void write(Reader reader, Writer writer) throws IOException {
+        int read = 0;
+        char[] buffer = new char[8096];
+        while ((read = reader.read(buffer)) > 0) {
+            writer.write(buffer, 0, read);
         }
+    }
 
-        return filesInOrder;
+    protected String getFileRequestSignature(String fileName) {
+        return pressRequestStart + fileName + pressRequestEnd;
     }
 
-    private String getFileNameWithIndex(String fileName, int index) {
-        return fileName + "[" + index + "]";
+    private String getFileRequestSignature(String fileName, int index) {
+        return pressRequestStart + fileName + "[" + index + "]" + pressRequestEnd;
     }
 
     private String getFileName(String fileNameWithIndex) {
@@ -688,14 +1640,34 @@ public abstract class Compressor extends PlayPlugin {
      * source directory, throws an exception.
      */
     public static VirtualFile checkFileExists(String fileName, String sourceDirectory) {
-        VirtualFile srcFile = getVirtualFile(sourceDirectory + fileName);
-
-        // Check the file exists
-        if (!srcFile.exists()) {
+        VirtualFile srcFile = findFile(fileName, sourceDirectory);
+        if (srcFile == null) {
+            srcFile = getVirtualFile(sourceDirectory + fileName);
             String msg = "Attempt to add file '" + srcFile.getRealFile().getAbsolutePath() + "' ";
             msg += "to compression but file does not exist.";
             throw new PressException(msg);
         }
+
+        return srcFile;
+    }
+
+    /**
+     * Gets the source file with the given name, or null if it doesn't exist
+     */
+    static VirtualFile findFile(String fileName, String sourceDirectory) {
+        // If the file was found recently, it doesn't need to be looked up
+        String lookupKey = "file:" + sourceDirectory + fileName;
+        VirtualFile srcFile = (VirtualFile) FileLookups.get(lookupKey);
+        if (srcFile != null) {
+            return srcFile;
+        }
+
+        srcFile = getVirtualFile(sourceDirectory + fileName);
+        if (!srcFile.exists()) {
+            return null;
+        }
+
+        FileLookups.put(lookupKey, srcFile);
         return srcFile;
     }
 
@@ -730,5 +1702,44 @@ public abstract class Compressor extends PlayPlugin {
 
             return fileNames;
         }
+
+        /**
+         * Describes the list of files on a single line, eg
+         * "cwidget.js\tulibrary.min.js" where 'c' indicates that the file is
+         * compressed and 'u' that it is not
+         */
+        public static String toLine(List<FileInfo> list) {
+            StringBuilder line = new StringBuilder();
+            for (FileInfo fileInfo : list) {
+                if (line.length() > 0) {
+                    line.append('\t');
+                }
+                line.append(fileInfo.compress ? 'c' : 'u').append(fileInfo.fileName);
+            }
+
+            return line.toString();
+        }
+
+        /**
+         * Reads a list of files described by toLine(). Returns null if any of
+         * the files no longer exists.
+         */
+        public static List<FileInfo> fromLine(String line, String srcDir) {
+            List<FileInfo> list = new ArrayList<FileInfo>();
+            for (String entry : line.split("\t")) {
+                if (entry.length() < 2) {
+                    return null;
+                }
+
+                String fileName = entry.substring(1);
+                VirtualFile file = getVirtualFile(srcDir + fileName);
+                if (!file.exists()) {
+                    return null;
+                }
+                list.add(new FileInfo(fileName, entry.charAt(0) == 'c', file));
+            }
+
+            return list;
+        }
     }
 }
@@ -0,0 +1,59 @@
+package press;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the results of looking up source files, ie the files matched by
+ * wildcard file names and the location of each source file, so that the file
+ * system doesn't need to be searched each time a page is rendered. Results
+ * are kept for press.cache.lookupMillis, or until the source watcher sees a
+ * file being added or deleted.
+ */
+public class FileLookups {
+    static final Map<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    static class Lookup {
+        final Object value;
+        final long lookedUpAt;
+
+        Lookup(Object value, long lookedUpAt) {
+            this.value = value;
+            this.lookedUpAt = lookedUpAt;
+        }
+    }
+
+    /**
+     * Gets the result of the lookup with the given key, or null if it hasn't
+     * been looked up recently
+     */
+    public static Object get(String key) {
+        if (PluginConfig.lookupMillis <= 0) {
+            return null;
+        }
+
+        Lookup lookup = lookups.get(key);
+        if (lookup == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - lookup.lookedUpAt >= PluginConfig.lookupMillis) {
+            lookups.remove(key);
+            return null;
+        }
+        return lookup.value;
+    }
+
+    public static void put(String key, Object value) {
+        if (PluginConfig.lookupMillis > 0) {
+            lookups.put(key, new Lookup(value, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Forgets all lookups, eg because source files have been added or deleted
+     */
+    public static void clear() {
+        lookups.clear();
+    }
+}
@@ -0,0 +1,122 @@
+package press;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.FileUtils;
+
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+/**
+ * Stores the compressed output of individual component files on disk, so that
+ * a file only needs to be compressed again when its content or the compression
+ * options change. Fragments are keyed by a hash of the source content and the
+ * compression options, so the same file included in several compressed files
+ * is only compressed once, and the store survives restarts.
+ */
+public class FragmentCache {
+    static final String FRAGMENT_DIR = "fragments/";
+
+    File dir;
+    String extension;
+
+    public FragmentCache(String compressedDir, String extension) {
+        this.dir = Play.getFile(PluginConfig.addTrailingSlash(compressedDir) + FRAGMENT_DIR);
+        this.extension = extension;
+    }
+
+    /**
+     * Gets the key for the compressed output of the given content with the
+     * given compression options
+     */
+    public static String getKey(byte[] content, String options) {
+        MessageDigest digest = Hashes.sha1();
+        digest.update(content);
+        String contentHash = Hashes.toHex(digest.digest());
+
+        try {
+            digest.update((options + "|" + contentHash).getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+        return Hashes.toHex(digest.digest());
+    }
+
+    /**
+     * Gets the compressed content stored for the given key, or null if there
+     * is no fragment with that key.
+     */
+    public String get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = FileUtils.readFileToByteArray(file);
+
+            // Touch the fragment so that it is not pruned while it's in use
+            file.setLastModified(System.currentTimeMillis());
+            return new String(bytes);
+        } catch (IOException e) {
+            // If the fragment can't be read, it will just be regenerated
+            PressLogger.trace("Could not read fragment %s: %s", file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the compressed content for the given key. The content is written
+     * to a temporary file first and then moved into place, so that a partially
+     * written fragment is never read.
+     */
+    public void put(String key, String content) {
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new PressException("Could not create directory for compressed fragments "
+                    + dir.getAbsolutePath());
+        }
+
+        File file = getFile(key);
+        File tmp = new File(file.getAbsolutePath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            FileUtils.writeByteArrayToFile(tmp, content.getBytes());
+            if (!tmp.renameTo(file)) {
+                // Another thread may have stored the same fragment first
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Deletes the fragments that have not been used for longer than the given
+     * amount of time.
+     *
+     * @return the number of fragments deleted
+     */
+    public int prune(long maxAgeMillis) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.lastModified() < oldest && file.delete()) {
+                deleted++;
+            }
+        }
+
+        PressLogger.trace("Deleted %d unused fragments from %s", deleted, dir.getAbsolutePath());
+        return deleted;
+    }
+
+    File getFile(String key) {
+        return new File(dir, key + extension);
+    }
+}
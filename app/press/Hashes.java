@@ -0,0 +1,152 @@
+package press;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import play.exceptions.UnexpectedException;
+
+/**
+ * Helpers for hashing the content of files, and for identifying lists of
+ * files
+ */
+public class Hashes {
+    static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Gets the SHA-1 of the content of the given file, as a hex string
+     */
+    public static String sha1(File file) throws IOException {
+        MessageDigest digest = sha1();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8096];
+            int read = 0;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Gets the 128 bit MurmurHash3 (x64 variant) of the given bytes, as a hex
+     * string. This is much faster than a cryptographic hash, and is used where
+     * the hash only needs to identify content, not to protect it.
+     */
+    public static String murmur3(byte[] data) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        int length = data.length;
+        int blocks = length / 16;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1, c1, c2);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK1(k2, c2, c1, 33);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // The remaining bytes
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        for (int i = length - tail - 1; i >= 0; i--) {
+            long b = data[tail + i] & 0xffL;
+            if (i >= 8) {
+                k2 |= b << ((i - 8) * 8);
+            } else {
+                k1 |= b << (i * 8);
+            }
+        }
+        if (length - tail > 8) {
+            h2 ^= mixK1(k2, c2, c1, 33);
+        }
+        if (length - tail > 0) {
+            h1 ^= mixK1(k1, c1, c2);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] hash = new byte[16];
+        putLong(hash, 0, h1);
+        putLong(hash, 8, h2);
+        return toHex(hash);
+    }
+
+    private static long mixK1(long k, long c1, long c2) {
+        return mixK1(k, c1, c2, 31);
+    }
+
+    private static long mixK1(long k, long c1, long c2, int rotation) {
+        k *= c1;
+        k = Long.rotateLeft(k, rotation);
+        k *= c2;
+        return k;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    // Little endian, as in the reference implementation
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+}
@@ -10,6 +10,7 @@ import org.mozilla.javascript.ErrorReporter;
 import org.mozilla.javascript.EvaluatorException;
 
 import play.Logger;
+import play.libs.F;
 import play.vfs.VirtualFile;
 
 import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
@@ -17,11 +18,12 @@ import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
 public class JSCompressor extends Compressor {
     public static final String TAG_NAME = "#{press.script}";
     public static final String FILE_TYPE = "JavaScript";
+    public static final String REQUEST_START = "<!-- press-js: ";
     public static final String EXTENSION = ".js";
 
     public JSCompressor() {
         super(FILE_TYPE, EXTENSION, "press.Press.getCompressedJS", TAG_NAME,
-                "#{press.compressed-script}", "<!-- press-js: ", " -->", PluginConfig.js.srcDir,
+                "#{press.compressed-script}", REQUEST_START, REQUEST_END, PluginConfig.js.srcDir,
                 PluginConfig.js.compressedDir);
     }
 
@@ -30,7 +32,13 @@ public class JSCompressor extends Compressor {
     }
 
     public static VirtualFile getCompressedFile(String key) {
-        return getCompressedFile(jsFileCompressor, key, PluginConfig.js.compressedDir, EXTENSION);
+        return getCompressedFile(jsFileCompressor, key, PluginConfig.js.srcDir,
+                PluginConfig.js.compressedDir, EXTENSION);
+    }
+
+    public static F.Promise<VirtualFile> getCompressedFileAsync(String key) {
+        return getCompressedFileAsync(jsFileCompressor, key, PluginConfig.js.srcDir,
+                PluginConfig.js.compressedDir, EXTENSION);
     }
 
     public static VirtualFile checkJSFileExists(String fileName) {
@@ -41,6 +49,23 @@ public class JSCompressor extends Compressor {
         return clearCache(PluginConfig.js.compressedDir, EXTENSION);
     }
 
+    public static void loadJournal() {
+        BundleManifest.loadJournal(PluginConfig.js.compressedDir, EXTENSION);
+    }
+
+    public static int readManifest() {
+        return BundleManifest.readManifest(PluginConfig.js.compressedDir,
+                PluginConfig.js.srcDir, EXTENSION);
+    }
+
+    public static int writeManifest() {
+        return BundleManifest.writeManifest(PluginConfig.js.compressedDir, EXTENSION);
+    }
+
+    public static int pruneFragments() {
+        return pruneFragments(PluginConfig.js.compressedDir, EXTENSION);
+    }
+
     static FileCompressor jsFileCompressor = new FileCompressor() {
         public void compress(String fileName, Reader in, Writer out) throws IOException {
             ErrorReporter errorReporter = new PressErrorReporter(fileName);
@@ -49,6 +74,12 @@ public class JSCompressor extends Compressor {
                     PluginConfig.js.warn, PluginConfig.js.preserveAllSemiColons,
                     PluginConfig.js.preserveStringLiterals);
         }
+
+        public String getOptions() {
+            return "yui-js:" + PluginConfig.js.lineBreak + ":" + PluginConfig.js.munge + ":"
+                    + PluginConfig.js.warn + ":" + PluginConfig.js.preserveAllSemiColons + ":"
+                    + PluginConfig.js.preserveStringLiterals;
+        }
     };
 
     static class PressErrorReporter implements ErrorReporter {
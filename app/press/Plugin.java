@@ -6,10 +6,9 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,37 +18,98 @@ import play.Play;
 import play.PlayPlugin;
 
 public class Plugin extends PlayPlugin {
-    static ThreadLocal<JSCompressor> jsCompressor = new ThreadLocal<JSCompressor>();
-    static ThreadLocal<CSSCompressor> cssCompressor = new ThreadLocal<CSSCompressor>();
-    static ThreadLocal<Boolean> errorOccurred = new ThreadLocal<Boolean>();
-    static ThreadLocal<Map<String, Boolean>> jsFiles = new ThreadLocal<Map<String, Boolean>>();
-    static ThreadLocal<Map<String, Boolean>> cssFiles = new ThreadLocal<Map<String, Boolean>>();
+    // Matches file names with a wildcard, eg "my-app/*.js" or "my-app/**.js"
+    static final Pattern WILDCARD_PATTERN = Pattern.compile("(?:.*/)?(\\*\\*?)\\.(\\w+)");
+
+    // Used to sort the files matched by a wildcard. Collator.compare() is
+    // synchronized, so the instance can be shared between threads
+    static final Collator US_COLLATOR = Collator.getInstance(Locale.US);
 
     @Override
     public void onApplicationStart() {
+        // The press:precompress command starts the application to read its
+        // configuration, and generates the compressed files itself
+        if (Precompressor.isRunning()) {
+            return;
+        }
+
         // Read the config each time the application is restarted
         PluginConfig.readConfig();
+        PressMetrics.register();
+        PressEvents.init();
+
+        // Read the list of compressed files that have already been generated
+        JSCompressor.loadJournal();
+        CSSCompressor.loadJournal();
+
+        // If the compressed files were generated when the application was
+        // built, use them as they are,
+        // as long as their component files haven't changed since
+        if (PluginConfig.precompressed) {
+            int jsFiles = JSCompressor.readManifest();
+            int cssFiles = CSSCompressor.readManifest();
+            int numFiles = jsFiles + cssFiles;
+            if (jsFiles >= 0 && cssFiles >= 0 && numFiles > 0) {
+                PressLogger.info("Using %d compressed files generated at build time", numFiles);
+                startWatching();
+                return;
+            }
+        }
 
-        // Clear the cache
+        // Clear the compressed files. The compressed fragments of each
+        // component file are kept, so regenerating the compressed files only
+        // requires compressing the component files that have changed.
         JSCompressor.clearCache();
         CSSCompressor.clearCache();
+
+        // Remove fragments that haven't been used for a long time
+        if (PluginConfig.fragmentCacheEnabled) {
+            JSCompressor.pruneFragments();
+            CSSCompressor.pruneFragments();
+        }
+
+        // Generate the compressed files that are likely to be requested, so
+        // that the first visitors don't have to wait for compression
+        if (PluginConfig.enabled && PluginConfig.pregenerate) {
+            BundlePregenerator.pregenerate();
+        }
+
+        startWatching();
+    }
+
+    private static void startWatching() {
+        if (PluginConfig.enabled && PluginConfig.watch) {
+            SourceWatcher.startWatching();
+        }
+    }
+
+    @Override
+    public void onApplicationStop() {
+        SourceWatcher.stopWatching();
+        PressMetrics.unregister();
+        Compressor.shutdownCompressionExecutor();
     }
 
     @Override
     public void beforeActionInvocation(Method actionMethod) {
-        // Before each action, reinitialize variables
-        jsCompressor.set(new JSCompressor());
-        cssCompressor.set(new CSSCompressor());
-        errorOccurred.set(false);
-        jsFiles.set(new HashMap<String, Boolean>());
-        cssFiles.set(new HashMap<String, Boolean>());
+        // Before each action, reinitialize variables. The compressors are only
+        // reset when a press tag is used
+        RenderContext.current().begin();
+    }
+
+    private static JSCompressor jsCompressor() {
+        return RenderContext.current().getJSCompressor();
+    }
+
+    private static CSSCompressor cssCompressor() {
+        return RenderContext.current().getCSSCompressor();
     }
 
     /**
      * Get the url for the compressed version of the given JS file, in real time
      */
     public static String compressedSingleJSUrl(String fileName) {
-        return jsCompressor.get().compressedSingleFileUrl(fileName);
+        return jsCompressor().compressedSingleFileUrl(fileName);
     }
 
     /**
@@ -57,7 +117,7 @@ public class Plugin extends PlayPlugin {
      * time
      */
     public static String compressedSingleCSSUrl(String fileName) {
-        return cssCompressor.get().compressedSingleFileUrl(fileName);
+        return cssCompressor().compressedSingleFileUrl(fileName);
     }
 
     /**
@@ -79,7 +139,8 @@ public class Plugin extends PlayPlugin {
      */
     public static void checkForJSDuplicates(String fileName, boolean compress) {
         checkJSFileExists(fileName);
-        checkForDuplicates(jsFiles.get(), fileName, JSCompressor.FILE_TYPE, JSCompressor.TAG_NAME);
+        checkForDuplicates(RenderContext.current().getJSFiles(), fileName, JSCompressor.FILE_TYPE,
+                JSCompressor.TAG_NAME);
     }
 
     /**
@@ -87,15 +148,14 @@ public class Plugin extends PlayPlugin {
      */
     public static void checkForCSSDuplicates(String fileName, boolean compress) {
         checkCSSFileExists(fileName);
-        checkForDuplicates(cssFiles.get(), fileName, CSSCompressor.FILE_TYPE,
-                CSSCompressor.TAG_NAME);
+        checkForDuplicates(RenderContext.current().getCSSFiles(), fileName,
+                CSSCompressor.FILE_TYPE, CSSCompressor.TAG_NAME);
     }
 
-    private static void checkForDuplicates(Map<String, Boolean> files, String fileName,
+    private static void checkForDuplicates(Set<String> files, String fileName,
             String fileType, String tagName) {
 
-        if (!files.containsKey(fileName)) {
-            files.put(fileName, true);
+        if (files.add(fileName)) {
             return;
         }
 
@@ -123,19 +183,31 @@ public class Plugin extends PlayPlugin {
      * @return
      */
     @SuppressWarnings("unchecked")
-    private static List<String> getResolvedFiles(String fileName, String sourceDir) {
+    static List<String> getResolvedFiles(String fileName, String sourceDir) {
+
+        // Most file names don't have a wildcard, so they don't need to be
+        // matched against the pattern
+        if (fileName.indexOf('*') < 0) {
+            return Collections.singletonList(fileName);
+        }
 
         List<String> sources = new ArrayList<String>();
 
-        String regex = "(?:.*/)?(\\*\\*?)\\.(\\w+)";
-        Pattern p = Pattern.compile(regex);
-        Matcher m = p.matcher(fileName);
+        Matcher m = WILDCARD_PATTERN.matcher(fileName);
 
         if (!m.matches()) {
             sources.add(fileName);
             return sources;
         }
 
+        // If the wildcard was resolved recently, the file system doesn't need
+        // to be searched again
+        String lookupKey = "glob:" + sourceDir + fileName;
+        List<String> resolved = (List<String>) FileLookups.get(lookupKey);
+        if (resolved != null) {
+            return resolved;
+        }
+
         String extension = m.group(2);
         boolean isRecursive = m.group(1).length() == 2;
 
@@ -151,8 +223,10 @@ public class Plugin extends PlayPlugin {
             sources.add(relativePath);
         }
 
-        Collections.sort(sources, Collator.getInstance(Locale.US)); // sort by US ASCII by default
+        Collections.sort(sources, US_COLLATOR); // sort by US ASCII by default
 
+        sources = Collections.unmodifiableList(sources);
+        FileLookups.put(lookupKey, sources);
         return sources;
     }
 
@@ -161,15 +235,15 @@ public class Plugin extends PlayPlugin {
      * included in the HTML without any changes.
      */
     public static String addUntouchedJS(String fileName) {
-        String baseURL = jsCompressor.get().srcDir;
-        String result = "";
+        String baseURL = jsCompressor().srcDir;
+        StringBuilder result = new StringBuilder();
 
         for (String src : getResolvedFiles(fileName, baseURL)) {
             press.Plugin.checkForJSDuplicates(src, true);
-            result += getScriptTag(baseURL + src);
+            appendScriptTag(result, baseURL + src);
         }
 
-        return result;
+        return result.toString();
     }
 
     /**
@@ -177,31 +251,37 @@ public class Plugin extends PlayPlugin {
      * in the HTML without any changes.
      */
     public static String addUntouchedCSS(String fileName) {
-        String baseURL = cssCompressor.get().srcDir;
-        String result = "";
+        String baseURL = cssCompressor().srcDir;
+        StringBuilder result = new StringBuilder();
 
         for (String src : getResolvedFiles(fileName, baseURL)) {
             press.Plugin.checkForCSSDuplicates(src, true);
-            result += getLinkTag(baseURL + src);
+            appendLinkTag(result, baseURL + src);
         }
 
-        return result;
+        return result.toString();
     }
 
     /**
-     * Returns a script tag which can be used to output untouched JavaScript
+     * Appends a script tag which can be used to output untouched JavaScript
      * tags within the HTML.
      */
-    private static String getScriptTag(String src) {
-        return "<script src=\"" + src + "\" type=\"text/javascript\" language=\"javascript\" charset=\"utf-8\"></script>\n";
+    private static void appendScriptTag(StringBuilder result, String src) {
+        result.append("<script src=\"").append(src).append(
+                "\" type=\"text/javascript\" language=\"javascript\" charset=\"utf-8\"></script>\n");
     }
 
     /**
-     * Returns a link tag which can be used to output untouched CSS tags within
+     * Appends a link tag which can be used to output untouched CSS tags within
      * the HTML.
      */
-    private static String getLinkTag(String src) {
-        return "<link href=\"" + src + "\" rel=\"stylesheet\" type=\"text/css\" charset=\"utf-8\">" + (press.PluginConfig.htmlCompatible ? "" : "</link>") + "\n";
+    private static void appendLinkTag(StringBuilder result, String src) {
+        result.append("<link href=\"").append(src).append(
+                "\" rel=\"stylesheet\" type=\"text/css\" charset=\"utf-8\">");
+        if (!press.PluginConfig.htmlCompatible) {
+            result.append("</link>");
+        }
+        result.append('\n');
     }
 
     /**
@@ -209,13 +289,36 @@ public class Plugin extends PlayPlugin {
      * be output in HTML
      */
     public static String addJS(String fileName, boolean compress) {
-        JSCompressor compressor = jsCompressor.get();
-        String result = "";
-
-        for (String src : getResolvedFiles(fileName, compressor.srcDir))
-            result += compressor.add(src, compress);
+        return addJS(fileName, compress, null);
+    }
 
-        return result;
+    /**
+     * Adds the given file to the JS compressor, returning the file signature to
+     * be output in HTML
+     *
+     * @param output the template output that the file signature is written to
+     */
+    public static String addJS(String fileName, boolean compress, Object output) {
+        JSCompressor compressor = jsCompressor();
+        long start = ServerTiming.start();
+        List<String> files = getResolvedFiles(fileName, compressor.srcDir);
+        ServerTiming.record(ServerTiming.Phase.GLOB, start);
+
+        start = ServerTiming.start();
+        try {
+            // Usually there is a single file, so there is nothing to join
+            if (files.size() == 1) {
+                return compressor.add(files.get(0), compress, output);
+            }
+
+            StringBuilder result = new StringBuilder();
+            for (String src : files) {
+                result.append(compressor.add(src, compress, output));
+            }
+            return result.toString();
+        } finally {
+            ServerTiming.record(ServerTiming.Phase.ADD, start);
+        }
     }
 
     /**
@@ -223,13 +326,36 @@ public class Plugin extends PlayPlugin {
      * to be output in HTML
      */
     public static String addCSS(String fileName, boolean compress) {
-        CSSCompressor compressor = cssCompressor.get();
-        String result = "";
-
-        for (String src : getResolvedFiles(fileName, compressor.srcDir))
-            result += compressor.add(src, compress);
+        return addCSS(fileName, compress, null);
+    }
 
-        return result;
+    /**
+     * Adds the given file to the CSS compressor, returning the file signature
+     * to be output in HTML
+     *
+     * @param output the template output that the file signature is written to
+     */
+    public static String addCSS(String fileName, boolean compress, Object output) {
+        CSSCompressor compressor = cssCompressor();
+        long start = ServerTiming.start();
+        List<String> files = getResolvedFiles(fileName, compressor.srcDir);
+        ServerTiming.record(ServerTiming.Phase.GLOB, start);
+
+        start = ServerTiming.start();
+        try {
+            // Usually there is a single file, so there is nothing to join
+            if (files.size() == 1) {
+                return compressor.add(files.get(0), compress, output);
+            }
+
+            StringBuilder result = new StringBuilder();
+            for (String src : files) {
+                result.append(compressor.add(src, compress, output));
+            }
+            return result.toString();
+        } finally {
+            ServerTiming.record(ServerTiming.Phase.ADD, start);
+        }
     }
 
     /**
@@ -238,7 +364,10 @@ public class Plugin extends PlayPlugin {
      * compressed file.
      */
     public static String compressedJSUrl() {
-        return jsCompressor.get().compressedUrl();
+        long start = ServerTiming.start();
+        String url = jsCompressor().compressedUrl();
+        ServerTiming.record(ServerTiming.Phase.URL, start);
+        return url;
     }
 
     /**
@@ -247,29 +376,36 @@ public class Plugin extends PlayPlugin {
      * file.
      */
     public static String compressedCSSUrl() {
-        return cssCompressor.get().compressedUrl();
+        long start = ServerTiming.start();
+        String url = cssCompressor().compressedUrl();
+        ServerTiming.record(ServerTiming.Phase.URL, start);
+        return url;
     }
 
     @Override
     public void afterActionInvocation() {
         // At the end of the action, save the list of files that will be
         // associated with this request
-        if (jsCompressor.get() != null && cssCompressor.get() != null) {
-            jsCompressor.get().saveFileList();
-            cssCompressor.get().saveFileList();
+        RenderContext context = RenderContext.inAction();
+        if (context != null) {
+            context.end();
+            ServerTiming.addHeader(context);
         }
     }
 
     @Override
     public void onInvocationException(Throwable e) {
-        errorOccurred.set(true);
+        // The action won't be completed, so make sure the context isn't left
+        // in the action
+        RenderContext.current().fail();
     }
 
     /**
      * Indicates whether or not an error has occurred
      */
     public static boolean hasErrorOccurred() {
-        return errorOccurred.get() == null || errorOccurred.get();
+        RenderContext context = RenderContext.inAction();
+        return context == null || context.errorOccurred;
     }
 
     /**
@@ -2,6 +2,7 @@ package press;
 
 import play.Play;
 import play.Play.Mode;
+import play.libs.Time;
 
 public class PluginConfig {
     /**
@@ -19,16 +20,99 @@ public class PluginConfig {
         // Default is to be available in dev only
         public static final boolean cacheClearEnabled = (Play.mode == Mode.DEV);
 
+        // Whether the metrics can be read through the web interface
+        // Default is to be available in dev only
+        public static final boolean metricsRouteEnabled = (Play.mode == Mode.DEV);
+
+        // Whether the time spent by press on each request is reported in a
+        // Server-Timing response header
+        public static final boolean serverTiming = false;
+
+        // Whether Java Flight Recorder events are recorded for the work done
+        // by press. Requires lib/play-press-jfr.jar, built with "ant jfr"
+        public static final boolean jfr = false;
+
         // The amount of time that a compression key is stored for.
         // This only needs to be as long as the time between when the action
         // finishes and the browser requests the compressed javascript (usually
         // less than a second)
         public static final String compressionKeyStorageTime = "2mn";
 
+        // Whether the list of files is encoded in the url of the compressed
+        // file, rather than being stored in the cache under a key. This allows
+        // any server to generate the compressed file from the url alone
+        public static final boolean statelessKeys = false;
+
+        // Whether the order in which the press tags are executed is used as the
+        // order of the files in the compressed file, when it is known to be
+        // the order in which they appear in the response. Otherwise the
+        // response is scanned to find the order
+        public static final boolean renderOrder = true;
+
+        // Whether compressed files are generated when the application starts
+        // Default is to generate them in prod only
+        public static final boolean pregenerate = (Play.mode == Mode.PROD);
+
+        // Whether compressed files generated at build time with the
+        // press:precompress command are used as they are
+        public static final boolean precompressed = false;
+
         // The maximum amount of time in milli-seconds allowed for compression
         // to occur before a timeout exception is thrown.
         public static final int maxCompressionTimeMillis = 60000;
 
+        // The number of threads used to compress the component files of a
+        // compressed file concurrently
+        public static final int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+        // The number of threads used to generate compressed files requested
+        // by browsers, and the number of files that can be waiting to be
+        // generated before they are generated by the request threads instead
+        public static final int generationThreads = Runtime.getRuntime().availableProcessors();
+        public static final int generationQueueSize = 64;
+
+        // Whether the compressed output of each component file is stored, so
+        // that it is only compressed again when its content changes
+        public static final boolean fragmentCacheEnabled = true;
+
+        // With the caching strategy Change, the minimum amount of time in
+        // milli-seconds between checks of whether the component files of a
+        // compressed file have changed
+        public static final int revalidateMillis = 1000;
+
+        // The amount of time in milli-seconds for which the files matched by a
+        // wildcard, and the location of each source file, are remembered
+        public static final int lookupMillis = (Play.mode == Mode.DEV) ? 1000 : 60000;
+
+        // Whether the source directories are watched for changes, so that the
+        // compressed files that include a changed file are generated again in
+        // the background
+        public static final boolean watch = false;
+
+        // The amount of time in milli-seconds between checks of the source
+        // directories for changes
+        public static final int watchIntervalMillis = 1000;
+
+        // Whether the compressed files are spread over sub-directories of the
+        // output directory, rather than all written to the same directory
+        public static final boolean subdirectories = false;
+
+        // The amount of time that an unused compressed fragment is kept for
+        public static final String fragmentLifetime = "30d";
+
+        // Whether a gzipped copy of each compressed file is written, and
+        // served to browsers that accept gzip encoding
+        public static final boolean gzipEnabled = true;
+
+        // The maximum total size in bytes of the compressed files that are
+        // held in memory. Set to 0 to always read compressed files from disk
+        public static final int memoryCacheMaxBytes = 32 * 1024 * 1024;
+
+        // Compressed files larger than this are never held in memory, so that
+        // a few large files can't evict all the others. They are read from
+        // disk on each request
+        public static final int memoryCacheMaxEntryBytes = 1024 * 1024;
+
         // Indicates whether the code output by press is compatible with the
         // HTML standard. For example HTML requires that a closing LINK tag MUST
         // NOT be output, while XHTML requires that it MUST be output
@@ -64,8 +148,29 @@ public class PluginConfig {
     public static boolean enabled;
     public static CachingStrategy cache;
     public static boolean cacheClearEnabled;
+    public static boolean metricsRouteEnabled;
+    public static boolean serverTiming;
+    public static boolean jfr;
     public static String compressionKeyStorageTime;
+    public static long compressionKeyStorageMillis;
+    public static boolean statelessKeys;
+    public static boolean renderOrder;
+    public static boolean pregenerate;
+    public static boolean precompressed;
     public static int maxCompressionTimeMillis;
+    public static int compressionThreads;
+    public static int generationThreads;
+    public static int generationQueueSize;
+    public static int revalidateMillis;
+    public static int lookupMillis;
+    public static boolean watch;
+    public static int watchIntervalMillis;
+    public static boolean subdirectories;
+    public static boolean fragmentCacheEnabled;
+    public static String fragmentLifetime;
+    public static boolean gzipEnabled;
+    public static int memoryCacheMaxBytes;
+    public static int memoryCacheMaxEntryBytes;
     public static boolean htmlCompatible;
 
     public static class js {
@@ -98,11 +203,45 @@ public class PluginConfig {
         cache = CachingStrategy.parse(ConfigHelper.getString("press.cache", cacheDefault));
         cacheClearEnabled = ConfigHelper.getBoolean("press.cache.clearEnabled",
                 DefaultConfig.cacheClearEnabled);
+        metricsRouteEnabled = ConfigHelper.getBoolean("press.metrics.routeEnabled",
+                DefaultConfig.metricsRouteEnabled);
+        serverTiming = ConfigHelper.getBoolean("press.serverTiming", DefaultConfig.serverTiming);
+        jfr = ConfigHelper.getBoolean("press.jfr", DefaultConfig.jfr);
         enabled = ConfigHelper.getBoolean("press.enabled", DefaultConfig.enabled);
         compressionKeyStorageTime = ConfigHelper.getString("press.key.lifetime",
                 DefaultConfig.compressionKeyStorageTime);
+        compressionKeyStorageMillis = Time.parseDuration(compressionKeyStorageTime) * 1000L;
+        statelessKeys = ConfigHelper.getBoolean("press.key.stateless",
+                DefaultConfig.statelessKeys);
+        renderOrder = ConfigHelper.getBoolean("press.renderOrder", DefaultConfig.renderOrder);
+        pregenerate = ConfigHelper.getBoolean("press.pregenerate", DefaultConfig.pregenerate);
+        precompressed = ConfigHelper.getBoolean("press.precompressed",
+                DefaultConfig.precompressed);
         maxCompressionTimeMillis = ConfigHelper.getInt("press.compression.maxTimeMillis",
                 DefaultConfig.maxCompressionTimeMillis);
+        compressionThreads = ConfigHelper.getInt("press.compression.threads",
+                DefaultConfig.compressionThreads);
+        generationThreads = atLeastOne("press.generation.threads", ConfigHelper.getInt(
+                "press.generation.threads", DefaultConfig.generationThreads));
+        generationQueueSize = atLeastOne("press.generation.queueSize", ConfigHelper.getInt(
+                "press.generation.queueSize", DefaultConfig.generationQueueSize));
+        revalidateMillis = ConfigHelper.getInt("press.cache.revalidateMillis",
+                DefaultConfig.revalidateMillis);
+        lookupMillis = ConfigHelper.getInt("press.cache.lookupMillis", DefaultConfig.lookupMillis);
+        watch = ConfigHelper.getBoolean("press.watch", DefaultConfig.watch);
+        watchIntervalMillis = ConfigHelper.getInt("press.watch.intervalMillis",
+                DefaultConfig.watchIntervalMillis);
+        subdirectories = ConfigHelper.getBoolean("press.cache.subdirectories",
+                DefaultConfig.subdirectories);
+        fragmentCacheEnabled = ConfigHelper.getBoolean("press.cache.fragments",
+                DefaultConfig.fragmentCacheEnabled);
+        fragmentLifetime = ConfigHelper.getString("press.cache.fragments.lifetime",
+                DefaultConfig.fragmentLifetime);
+        gzipEnabled = ConfigHelper.getBoolean("press.gzip", DefaultConfig.gzipEnabled);
+        memoryCacheMaxBytes = ConfigHelper.getInt("press.cache.memory.maxBytes",
+                DefaultConfig.memoryCacheMaxBytes);
+        memoryCacheMaxEntryBytes = ConfigHelper.getInt("press.cache.memory.maxEntryBytes",
+                DefaultConfig.memoryCacheMaxEntryBytes);
         htmlCompatible = ConfigHelper.getBoolean("press.htmlCompatible",
                 DefaultConfig.htmlCompatible);
 
@@ -138,7 +277,27 @@ public class PluginConfig {
         PressLogger.trace("enabled: %b", enabled);
         PressLogger.trace("caching strategy: %s", cache);
         PressLogger.trace("cache publicly clearable: %s", cacheClearEnabled);
+        PressLogger.trace("metrics publicly readable: %s", metricsRouteEnabled);
+        PressLogger.trace("server timing: %b", serverTiming);
+        PressLogger.trace("flight recorder events: %b", jfr);
         PressLogger.trace("compression key storage time: %s", compressionKeyStorageTime);
+        PressLogger.trace("stateless keys: %b", statelessKeys);
+        PressLogger.trace("render order: %b", renderOrder);
+        PressLogger.trace("pregenerate: %b", pregenerate);
+        PressLogger.trace("precompressed: %b", precompressed);
+        PressLogger.trace("compression threads: %d", compressionThreads);
+        PressLogger.trace("generation threads: %d", generationThreads);
+        PressLogger.trace("generation queue size: %d", generationQueueSize);
+        PressLogger.trace("revalidate millis: %d", revalidateMillis);
+        PressLogger.trace("lookup millis: %d", lookupMillis);
+        PressLogger.trace("watch source directories: %b", watch);
+        PressLogger.trace("watch interval millis: %d", watchIntervalMillis);
+        PressLogger.trace("subdirectories: %b", subdirectories);
+        PressLogger.trace("fragment cache enabled: %b", fragmentCacheEnabled);
+        PressLogger.trace("fragment lifetime: %s", fragmentLifetime);
+        PressLogger.trace("gzip enabled: %b", gzipEnabled);
+        PressLogger.trace("memory cache max bytes: %d", memoryCacheMaxBytes);
+        PressLogger.trace("memory cache max entry bytes: %d", memoryCacheMaxEntryBytes);
         PressLogger.trace("HTML compatible: %b", htmlCompatible);
         PressLogger.trace("css source directory: %s", css.srcDir);
         PressLogger.trace("css compressed output directory: %s", css.compressedDir);
@@ -152,6 +311,19 @@ public class PluginConfig {
         PressLogger.trace("YUI js preserve string literals: %s", js.preserveStringLiterals);
     }
 
+    /**
+     * Gets the given value of the setting with the given name, or 1 if the
+     * value is less than 1
+     */
+    private static int atLeastOne(String name, int value) {
+        if (value < 1) {
+            PressLogger.warn("%s must be at least 1, using 1 instead of %d", name, value);
+            return 1;
+        }
+
+        return value;
+    }
+
     public static String addTrailingSlash(String dir) {
         if (dir.charAt(dir.length() - 1) != '/') {
             return dir + '/';
@@ -0,0 +1,61 @@
+package press;
+
+import java.io.File;
+
+import play.Play;
+
+/**
+ * Generates the compressed files for an application outside of the server,
+ * eg on the build machine as part of a deploy. Run with the press:precompress
+ * command:
+ *
+ * <pre>
+ * play press:precompress myapp
+ * </pre>
+ *
+ * The compressed files are generated with the same compression pipeline as at
+ * runtime, for the lists of files found by BundlePregenerator. A manifest of
+ * the generated files is written to each output directory. When the
+ * application is started with press.precompressed=true, the compressed files
+ * listed in the manifest are used as they are.
+ * <p>
+ * In PROD mode, Play.init() starts the application. The plugin doesn't clear
+ * or pregenerate the compressed files while the command is running, as the
+ * command does that itself.
+ */
+public class Precompressor {
+    // Set while the command runs, so that the plugin leaves the compressed
+    // files to the command when the application is started
+    static final String RUNNING_PROPERTY = "press.precompressing";
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(System.getProperty("application.path", "."));
+        System.setProperty(RUNNING_PROPERTY, "true");
+        Play.init(root, System.getProperty("play.id", ""));
+        PluginConfig.readConfig();
+        JSCompressor.loadJournal();
+        CSSCompressor.loadJournal();
+
+        PressLogger.info("Generating compressed files for %s", root.getAbsolutePath());
+
+        // Start from scratch, so that the manifest only lists the compressed
+        // files that are generated now
+        JSCompressor.clearCache();
+        CSSCompressor.clearCache();
+        PluginConfig.cache = CachingStrategy.Always;
+        BundlePregenerator.pregenerate();
+
+        int numFiles = JSCompressor.writeManifest() + CSSCompressor.writeManifest();
+        PressLogger.info("Wrote %d compressed files to manifest", numFiles);
+
+        Compressor.shutdownCompressionExecutor();
+        System.exit(0);
+    }
+
+    /**
+     * Indicates whether the press:precompress command is running in this JVM
+     */
+    static boolean isRunning() {
+        return Boolean.getBoolean(RUNNING_PROPERTY);
+    }
+}
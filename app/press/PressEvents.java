@@ -0,0 +1,182 @@
+package press;
+
+import java.lang.reflect.Method;
+
+import play.exceptions.UnexpectedException;
+
+/**
+ * Reports the work done by press to a profiler, eg as Java Flight Recorder
+ * events, so that the time spent generating and serving compressed files can
+ * be attributed to specific files.
+ * <p>
+ * The module supports Java versions that don't have the Flight Recorder API,
+ * so events are reported through the Recorder interface. The recorder for
+ * Java Flight Recorder is built separately into lib/play-press-jfr.jar with
+ * "ant jfr", and is used when press.jfr is true. When there is no recorder,
+ * reporting an event only costs a null check.
+ */
+public class PressEvents {
+    static final String JFR_RECORDER = "press.jfr.JfrRecorder";
+
+    public enum Type {
+        GENERATION, FRAGMENT, LOCK_WAIT, SCAN, VALIDATION
+    }
+
+    /**
+     * Records events. Each event is started with begin(), and ended with the
+     * end method for its type, which is passed the object returned by
+     * begin().
+     */
+    public interface Recorder {
+        /**
+         * Starts an event of the given type, returning the event to pass to
+         * the end method, or null if events of that type are not recorded
+         */
+        public Object begin(Type type);
+
+        public void endGeneration(Object event, String bundleId, int components, long bytesIn,
+                long bytesOut);
+
+        public void endFragment(Object event, String fileName, boolean cached, long bytesIn,
+                long bytesOut);
+
+        public void endLockWait(Object event, String fileName);
+
+        public void endScan(Object event, int responseBytes, int requests);
+
+        public void endValidation(Object event, String fileName, boolean changed);
+    }
+
+    static volatile Recorder recorder;
+
+    /**
+     * Sets up the recorder according to the configuration
+     */
+    public static void init() {
+        recorder = null;
+        if (!PluginConfig.jfr) {
+            return;
+        }
+
+        try {
+            Class<?> recorderClass = Class.forName(JFR_RECORDER, true, PressEvents.class
+                    .getClassLoader());
+            recorder = new ReflectiveRecorder(recorderClass);
+            PressLogger.trace("Recording Java Flight Recorder events");
+        } catch (ClassNotFoundException e) {
+            PressLogger.warn("press.jfr is true but %s was not found. Build "
+                    + "lib/play-press-jfr.jar with \"ant jfr\" (requires Java 11)", JFR_RECORDER);
+        } catch (Throwable e) {
+            PressLogger.warn("Could not set up Java Flight Recorder events: %s", e);
+        }
+    }
+
+    /**
+     * Starts an event of the given type, returning the event to pass to the
+     * end method, or null if the event is not recorded
+     */
+    public static Object begin(Type type) {
+        Recorder r = recorder;
+        return r == null ? null : r.begin(type);
+    }
+
+    public static void endGeneration(Object event, String bundleId, int components,
+            long bytesIn, long bytesOut) {
+        Recorder r = recorder;
+        if (event != null && r != null) {
+            r.endGeneration(event, bundleId, components, bytesIn, bytesOut);
+        }
+    }
+
+    public static void endFragment(Object event, String fileName, boolean cached, long bytesIn,
+            long bytesOut) {
+        Recorder r = recorder;
+        if (event != null && r != null) {
+            r.endFragment(event, fileName, cached, bytesIn, bytesOut);
+        }
+    }
+
+    public static void endLockWait(Object event, String fileName) {
+        Recorder r = recorder;
+        if (event != null && r != null) {
+            r.endLockWait(event, fileName);
+        }
+    }
+
+    public static void endScan(Object event, int responseBytes, int requests) {
+        Recorder r = recorder;
+        if (event != null && r != null) {
+            r.endScan(event, responseBytes, requests);
+        }
+    }
+
+    public static void endValidation(Object event, String fileName, boolean changed) {
+        Recorder r = recorder;
+        if (event != null && r != null) {
+            r.endValidation(event, fileName, changed);
+        }
+    }
+
+    /**
+     * Calls the Java Flight Recorder recorder by reflection. It is built
+     * separately from the module, and may be loaded by a different class
+     * loader from the application classes, so it only uses JDK types: the
+     * type of event is passed as its name.
+     */
+    static class ReflectiveRecorder implements Recorder {
+        final Object target;
+        final Method begin;
+        final Method endGeneration;
+        final Method endFragment;
+        final Method endLockWait;
+        final Method endScan;
+        final Method endValidation;
+
+        ReflectiveRecorder(Class<?> recorderClass) throws Exception {
+            target = recorderClass.newInstance();
+            begin = recorderClass.getMethod("begin", String.class);
+            endGeneration = recorderClass.getMethod("endGeneration", Object.class, String.class,
+                    int.class, long.class, long.class);
+            endFragment = recorderClass.getMethod("endFragment", Object.class, String.class,
+                    boolean.class, long.class, long.class);
+            endLockWait = recorderClass.getMethod("endLockWait", Object.class, String.class);
+            endScan = recorderClass.getMethod("endScan", Object.class, int.class, int.class);
+            endValidation = recorderClass.getMethod("endValidation", Object.class, String.class,
+                    boolean.class);
+        }
+
+        public Object begin(Type type) {
+            return invoke(begin, type.name());
+        }
+
+        public void endGeneration(Object event, String bundleId, int components, long bytesIn,
+                long bytesOut) {
+            invoke(endGeneration, event, bundleId, components, bytesIn, bytesOut);
+        }
+
+        public void endFragment(Object event, String fileName, boolean cached, long bytesIn,
+                long bytesOut) {
+            invoke(endFragment, event, fileName, cached, bytesIn, bytesOut);
+        }
+
+        public void endLockWait(Object event, String fileName) {
+            invoke(endLockWait, event, fileName);
+        }
+
+        public void endScan(Object event, int responseBytes, int requests) {
+            invoke(endScan, event, responseBytes, requests);
+        }
+
+        public void endValidation(Object event, String fileName, boolean changed) {
+            invoke(endValidation, event, fileName, changed);
+        }
+
+        private Object invoke(Method method, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (Exception e) {
+                throw new UnexpectedException(e);
+            }
+        }
+    }
+}
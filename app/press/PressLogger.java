@@ -4,6 +4,18 @@ import play.Logger;
 
 public class PressLogger {
     public static void trace(String message, Object... args) {
-        Logger.trace("Press: " + message, args);
+        // Trace messages are logged on every request, so don't build the
+        // message unless it will be logged
+        if (Logger.isTraceEnabled()) {
+            Logger.trace("Press: " + message, args);
+        }
+    }
+
+    public static void info(String message, Object... args) {
+        Logger.info("Press: " + message, args);
+    }
+
+    public static void warn(String message, Object... args) {
+        Logger.warn("Press: " + message, args);
     }
 }
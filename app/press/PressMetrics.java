@@ -0,0 +1,278 @@
+package press;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers for the work done by press, exposed through JMX and
+ * the /press/metrics route. Recording a metric only updates atomic counters,
+ * so it is cheap enough to do on every request.
+ */
+public class PressMetrics implements PressMetricsMBean {
+    static final String OBJECT_NAME = "press:type=Metrics";
+
+    // Requests for a compressed file that was served as it was, that had to
+    // be generated because it didn't exist, and that had to be generated
+    // again because its component files had changed
+    static final AtomicLong cacheHits = new AtomicLong();
+    static final AtomicLong cacheMisses = new AtomicLong();
+    static final AtomicLong cacheStale = new AtomicLong();
+
+    // Requests with a key that was not found in the cache, and the bad
+    // responses sent as a result
+    static final AtomicLong keyMisses = new AtomicLong();
+    static final AtomicLong badResponses = new AtomicLong();
+
+    // The size of the component files read and of the compressed files
+    // written when generating compressed files
+    static final AtomicLong bytesIn = new AtomicLong();
+    static final AtomicLong bytesOut = new AtomicLong();
+
+    // The requests that waited for a compressed file being generated by
+    // another thread, in total and at the moment
+    static final AtomicLong waiters = new AtomicLong();
+    static final AtomicInteger currentWaiters = new AtomicInteger();
+
+    static final Timer jsGeneration = new Timer();
+    static final Timer cssGeneration = new Timer();
+    static final Timer responseScan = new Timer();
+
+    /**
+     * Counts the number of events and their duration, with a histogram of
+     * the durations
+     */
+    public static class Timer {
+        // The upper bound of each bucket of the histogram in milli-seconds.
+        // The last bucket counts everything longer.
+        static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+                10000 };
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / (n * 1000000.0);
+        }
+
+        public long getMaxMillis() {
+            return maxNanos.get() / 1000000;
+        }
+
+        void reset() {
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("count", getCount());
+            map.put("meanMillis", getMeanMillis());
+            map.put("maxMillis", getMaxMillis());
+
+            Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                histogram.put("<" + BUCKETS[i], buckets.get(i));
+            }
+            histogram.put(">=" + BUCKETS[BUCKETS.length - 1], buckets.get(BUCKETS.length));
+            map.put("histogramMillis", histogram);
+            return map;
+        }
+    }
+
+    /**
+     * Records the generation of a compressed file
+     */
+    public static void recordGeneration(String extension, long nanos, long in, long out) {
+        getGenerationTimer(extension).record(nanos);
+        bytesIn.addAndGet(in);
+        bytesOut.addAndGet(out);
+    }
+
+    /**
+     * Records a bad response sent because the list of files for a key was not
+     * found
+     */
+    public static void recordBadResponse() {
+        badResponses.incrementAndGet();
+    }
+
+    private static Timer getGenerationTimer(String extension) {
+        return CSSCompressor.EXTENSION.equals(extension) ? cssGeneration : jsGeneration;
+    }
+
+    /**
+     * Gets all the metrics, as a map that can be rendered as JSON
+     */
+    public static Map<String, Object> toMap() {
+        Map<String, Object> cache = new LinkedHashMap<String, Object>();
+        cache.put("hits", cacheHits.get());
+        cache.put("misses", cacheMisses.get());
+        cache.put("stale", cacheStale.get());
+        cache.put("keyMisses", keyMisses.get());
+        cache.put("badResponses", badResponses.get());
+
+        Map<String, Object> generation = new LinkedHashMap<String, Object>();
+        generation.put("js", jsGeneration.toMap());
+        generation.put("css", cssGeneration.toMap());
+        generation.put("bytesIn", bytesIn.get());
+        generation.put("bytesOut", bytesOut.get());
+        generation.put("waiters", waiters.get());
+        generation.put("currentWaiters", currentWaiters.get());
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("cache", cache);
+        metrics.put("generation", generation);
+        metrics.put("responseScan", responseScan.toMap());
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing any
+     * previous registration (eg from before the application was reloaded)
+     */
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new PressMetrics(), name);
+        } catch (Exception e) {
+            PressLogger.warn("Could not register press metrics with JMX: %s", e);
+        }
+    }
+
+    public static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            PressLogger.warn("Could not unregister press metrics from JMX: %s", e);
+        }
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getCacheStale() {
+        return cacheStale.get();
+    }
+
+    public long getKeyMisses() {
+        return keyMisses.get();
+    }
+
+    public long getBadResponses() {
+        return badResponses.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getWaiters() {
+        return waiters.get();
+    }
+
+    public int getCurrentWaiters() {
+        return currentWaiters.get();
+    }
+
+    public long getJSGenerations() {
+        return jsGeneration.getCount();
+    }
+
+    public double getJSGenerationMeanMillis() {
+        return jsGeneration.getMeanMillis();
+    }
+
+    public long getJSGenerationMaxMillis() {
+        return jsGeneration.getMaxMillis();
+    }
+
+    public long getCSSGenerations() {
+        return cssGeneration.getCount();
+    }
+
+    public double getCSSGenerationMeanMillis() {
+        return cssGeneration.getMeanMillis();
+    }
+
+    public long getCSSGenerationMaxMillis() {
+        return cssGeneration.getMaxMillis();
+    }
+
+    public long getResponseScans() {
+        return responseScan.getCount();
+    }
+
+    public double getResponseScanMeanMillis() {
+        return responseScan.getMeanMillis();
+    }
+
+    public long getResponseScanMaxMillis() {
+        return responseScan.getMaxMillis();
+    }
+
+    public void reset() {
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        cacheStale.set(0);
+        keyMisses.set(0);
+        badResponses.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        waiters.set(0);
+        jsGeneration.reset();
+        cssGeneration.reset();
+        responseScan.reset();
+    }
+}
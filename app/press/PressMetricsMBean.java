@@ -0,0 +1,44 @@
+package press;
+
+/**
+ * The press metrics exposed through JMX, as "press:type=Metrics"
+ */
+public interface PressMetricsMBean {
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public long getCacheStale();
+
+    public long getKeyMisses();
+
+    public long getBadResponses();
+
+    public long getBytesIn();
+
+    public long getBytesOut();
+
+    public long getWaiters();
+
+    public int getCurrentWaiters();
+
+    public long getJSGenerations();
+
+    public double getJSGenerationMeanMillis();
+
+    public long getJSGenerationMaxMillis();
+
+    public long getCSSGenerations();
+
+    public double getCSSGenerationMeanMillis();
+
+    public long getCSSGenerationMaxMillis();
+
+    public long getResponseScans();
+
+    public double getResponseScanMeanMillis();
+
+    public long getResponseScanMaxMillis();
+
+    public void reset();
+}
@@ -0,0 +1,183 @@
+package press;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The press state of the request being handled by the current thread: the
+ * files added by the press tags and whether an error occurred.
+ * <p>
+ * Each thread has a single context that is reused from one request to the
+ * next, and the compressors are only created or reset when a press tag is
+ * used, so actions that don't render press tags (eg JSON endpoints) don't
+ * allocate anything.
+ */
+public class RenderContext {
+    private static final ThreadLocal<RenderContext> current = new ThreadLocal<RenderContext>();
+
+    // Whether an action is being invoked, and whether an error occurred
+    // while invoking it
+    boolean inAction;
+    boolean errorOccurred;
+
+    // The compressors, and the files included without compression. Each is
+    // only reset the first time it is used in a request.
+    private JSCompressor jsCompressor;
+    private CSSCompressor cssCompressor;
+    private final Set<String> jsFiles = new HashSet<String>();
+    private final Set<String> cssFiles = new HashSet<String>();
+    private boolean jsUsed;
+    private boolean cssUsed;
+    private boolean jsFilesUsed;
+    private boolean cssFilesUsed;
+
+    // The text to replace in the response once the lists of files have been
+    // saved, and the replacement for each
+    private final String[] replacedTexts = new String[2];
+    private final String[] replacements = new String[2];
+    private int numReplacements;
+
+    // The time spent in each phase of the request, a bit for each phase that
+    // was timed, and the start of the stream phase, for the Server-Timing
+    // header
+    final long[] timings = new long[ServerTiming.PHASES.length];
+    int timed;
+    long streamStart = ServerTiming.NOT_TIMED;
+
+    /**
+     * Gets the context of the current thread, creating it the first time
+     */
+    public static RenderContext current() {
+        RenderContext context = current.get();
+        if (context == null) {
+            context = new RenderContext();
+            current.set(context);
+        }
+        return context;
+    }
+
+    /**
+     * Gets the context of the current thread if an action is being invoked,
+     * or null otherwise
+     */
+    public static RenderContext inAction() {
+        RenderContext context = current.get();
+        return context != null && context.inAction ? context : null;
+    }
+
+    /**
+     * Called before each action
+     */
+    void begin() {
+        inAction = true;
+        errorOccurred = false;
+        jsUsed = false;
+        cssUsed = false;
+        jsFilesUsed = false;
+        cssFilesUsed = false;
+        numReplacements = 0;
+        if (timed != 0) {
+            for (int i = 0; i < timings.length; i++) {
+                timings[i] = 0;
+            }
+            timed = 0;
+        }
+        streamStart = ServerTiming.NOT_TIMED;
+    }
+
+    /**
+     * Called after each action. Saves the list of files for each compressor
+     * that was used, then makes the replacements they asked for in the
+     * response.
+     */
+    void end() {
+        try {
+            if (jsUsed) {
+                jsCompressor.saveFileList();
+            }
+            if (cssUsed) {
+                cssCompressor.saveFileList();
+            }
+            if (numReplacements > 0) {
+                ResponseScanner.replaceInResponse(replacedTexts, replacements, numReplacements);
+            }
+        } finally {
+            inAction = false;
+            jsUsed = false;
+            cssUsed = false;
+            jsFilesUsed = false;
+            cssFilesUsed = false;
+            for (int i = 0; i < numReplacements; i++) {
+                replacedTexts[i] = null;
+                replacements[i] = null;
+            }
+            numReplacements = 0;
+        }
+    }
+
+    /**
+     * Called when an action throws an exception instead of completing. The
+     * lists of files are not saved, as the response won't be sent.
+     */
+    void fail() {
+        errorOccurred = true;
+        inAction = false;
+    }
+
+    /**
+     * Replaces the given text in the response once the lists of files of all
+     * the compressors have been saved, so that the response is only copied
+     * once
+     */
+    void replaceInResponse(String text, String replacement) {
+        replacedTexts[numReplacements] = text;
+        replacements[numReplacements] = replacement;
+        numReplacements++;
+    }
+
+    public JSCompressor getJSCompressor() {
+        if (!jsUsed) {
+            if (jsCompressor == null) {
+                jsCompressor = new JSCompressor();
+            } else {
+                jsCompressor.reset();
+            }
+            jsUsed = true;
+        }
+        return jsCompressor;
+    }
+
+    public CSSCompressor getCSSCompressor() {
+        if (!cssUsed) {
+            if (cssCompressor == null) {
+                cssCompressor = new CSSCompressor();
+            } else {
+                cssCompressor.reset();
+            }
+            cssUsed = true;
+        }
+        return cssCompressor;
+    }
+
+    /**
+     * Gets the JavaScript files included without compression in this request
+     */
+    public Set<String> getJSFiles() {
+        if (!jsFilesUsed) {
+            jsFiles.clear();
+            jsFilesUsed = true;
+        }
+        return jsFiles;
+    }
+
+    /**
+     * Gets the CSS files included without compression in this request
+     */
+    public Set<String> getCSSFiles() {
+        if (!cssFilesUsed) {
+            cssFiles.clear();
+            cssFilesUsed = true;
+        }
+        return cssFiles;
+    }
+}
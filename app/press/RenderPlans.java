@@ -0,0 +1,80 @@
+package press;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import press.Compressor.FileInfo;
+
+/**
+ * Remembers, for each list of files added by a template, the result of
+ * working out the compressed file for the list: its key, its component files
+ * and the url output in the page. When a page is rendered again and adds the
+ * same files in the same order, the url is output and the list registered
+ * (unless its key is stateless) without working them out again.
+ */
+public class RenderPlans {
+    // The maximum number of plans kept. When there are more, they are all
+    // forgotten and learnt again
+    static final int MAX_PLANS = 1024;
+
+    static final Map<String, Plan> plans = new ConcurrentHashMap<String, Plan>();
+
+    public static class Plan {
+        final String key;
+        final List<FileInfo> componentFiles;
+        final String url;
+
+        // Whether the key is a stateless key. The list of files is contained
+        // in a stateless key, so it doesn't need to be registered.
+        final boolean stateless;
+
+        // The compressed file, and the information recorded for it when the
+        // plan was made. The url contains the version of the compressed file,
+        // so the plan no longer applies once the file has been regenerated.
+        final File compressedFile;
+        final BundleManifest.Entry manifestEntry;
+
+        Plan(String key, List<FileInfo> componentFiles, String url, boolean stateless,
+                File compressedFile, BundleManifest.Entry manifestEntry) {
+            this.key = key;
+            this.componentFiles = componentFiles;
+            this.url = url;
+            this.stateless = stateless;
+            this.compressedFile = compressedFile;
+            this.manifestEntry = manifestEntry;
+        }
+    }
+
+    /**
+     * Gets the plan for the given list of files, or null if there is no plan
+     * for the list or the plan no longer applies
+     *
+     * @param files the extension followed by the files in the order they were
+     *            added, as built by Compressor.add()
+     */
+    public static Plan get(String files) {
+        Plan plan = plans.get(files);
+        if (plan == null) {
+            return null;
+        }
+
+        if (BundleManifest.find(plan.compressedFile) != plan.manifestEntry) {
+            plans.remove(files);
+            return null;
+        }
+        return plan;
+    }
+
+    public static void put(String files, Plan plan) {
+        if (plans.size() >= MAX_PLANS) {
+            plans.clear();
+        }
+        plans.put(files, plan);
+    }
+
+    public static void clear() {
+        plans.clear();
+    }
+}
@@ -0,0 +1,449 @@
+package press;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import play.exceptions.UnexpectedException;
+import play.mvc.Http.Request;
+import play.mvc.Http.Response;
+
+/**
+ * Finds the file compress requests output by the press tags in the response,
+ * eg:
+ *
+ * <pre>
+ * &lt;!-- press-js: widget.js[0] --&gt;
+ * </pre>
+ *
+ * The requests for all types of file are found in a single pass over the
+ * bytes of the response, without decoding the response into a String. The
+ * start of each request is found with an Aho-Corasick automaton built from
+ * the request signatures of each type of file, and the end of the request
+ * with a KMP matcher. Only the file names are decoded.
+ * <p>
+ * The same pass finds the placeholders output instead of the compressed file
+ * urls that were not yet known, so that they can all be replaced with a
+ * single copy of the response.
+ */
+public class ResponseScanner {
+    static final String ARG_NAME = "press.responseScan";
+
+    // The scanner for the JavaScript and CSS compress requests and url
+    // placeholders
+    static final ResponseScanner scanner = new ResponseScanner(new String[] {
+            JSCompressor.REQUEST_START, CSSCompressor.REQUEST_START }, Compressor.REQUEST_END,
+            new String[] { Compressor.getUrlPlaceholder(JSCompressor.EXTENSION),
+                    Compressor.getUrlPlaceholder(CSSCompressor.EXTENSION) });
+
+    private final String[] starts;
+    private final byte[] end;
+    private final String[] placeholders;
+    private final int[] placeholderLengths;
+
+    // The transitions of the automaton for each state and input byte, and the
+    // index of the start signature matched in each state, or -1
+    private final int[][] transitions;
+    private final int[] matches;
+
+    // The KMP failure function of the end signature
+    private final int[] endFailure;
+
+    /**
+     * @param starts the request signatures
+     * @param end the signature at the end of each request
+     * @param placeholders the fixed strings whose position is recorded
+     */
+    public ResponseScanner(String[] starts, String end, String[] placeholders) {
+        this.starts = starts;
+        this.end = BundleKey.getBytes(end);
+        this.placeholders = placeholders;
+        placeholderLengths = new int[placeholders.length];
+        for (int i = 0; i < placeholders.length; i++) {
+            placeholderLengths[i] = BundleKey.getBytes(placeholders[i]).length;
+        }
+
+        // Build the trie of start signatures, followed by the placeholders
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Integer> trieMatches = new ArrayList<Integer>();
+        trie.add(newState());
+        trieMatches.add(-1);
+        for (int i = 0; i < starts.length + placeholders.length; i++) {
+            String signature = i < starts.length ? starts[i] : placeholders[i - starts.length];
+            int state = 0;
+            for (byte b : BundleKey.getBytes(signature)) {
+                int next = trie.get(state)[b & 0xff];
+                if (next <= 0) {
+                    next = trie.size();
+                    trie.add(newState());
+                    trieMatches.add(-1);
+                    trie.get(state)[b & 0xff] = next;
+                }
+                state = next;
+            }
+            trieMatches.set(state, i);
+        }
+
+        // Turn the trie into a deterministic automaton, following the failure
+        // links breadth first
+        transitions = trie.toArray(new int[trie.size()][]);
+        matches = new int[transitions.length];
+        int[] failure = new int[transitions.length];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = trieMatches.get(i);
+        }
+
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int c = 0; c < 256; c++) {
+            int next = transitions[0][c];
+            if (next > 0) {
+                failure[next] = 0;
+                queue.add(next);
+            } else {
+                transitions[0][c] = 0;
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            if (matches[state] < 0) {
+                matches[state] = matches[failure[state]];
+            }
+
+            for (int c = 0; c < 256; c++) {
+                int next = transitions[state][c];
+                if (next > 0) {
+                    failure[next] = transitions[failure[state]][c];
+                    queue.add(next);
+                } else {
+                    transitions[state][c] = transitions[failure[state]][c];
+                }
+            }
+        }
+
+        // Build the failure function of the end signature
+        endFailure = new int[this.end.length + 1];
+        endFailure[0] = -1;
+        for (int i = 1; i <= this.end.length; i++) {
+            int k = endFailure[i - 1];
+            while (k >= 0 && this.end[k] != this.end[i - 1]) {
+                k = endFailure[k];
+            }
+            endFailure[i] = k + 1;
+        }
+    }
+
+    private static int[] newState() {
+        int[] state = new int[256];
+        for (int c = 0; c < 256; c++) {
+            state[c] = -1;
+        }
+        return state;
+    }
+
+    /**
+     * The result of a scan: the names of the files requested, in order, keyed
+     * by request signature, and the offset of the first occurrence of each
+     * placeholder, or -1 if it wasn't found
+     */
+    public static class Result {
+        public final Map<String, List<String>> requests;
+        public final int[] placeholderOffsets;
+
+        Result(Map<String, List<String>> requests, int[] placeholderOffsets) {
+            this.requests = requests;
+            this.placeholderOffsets = placeholderOffsets;
+        }
+    }
+
+    /**
+     * Gets the names of the files requested in the current response with the
+     * given request signature, in the order in which they appear. The response
+     * is only scanned once per request for all types of file.
+     */
+    public static List<String> getFileRequests(String start) {
+        List<String> files = getScan().requests.get(start);
+        return files == null ? new ArrayList<String>() : files;
+    }
+
+    /**
+     * Gets the result of scanning the current response, scanning it the first
+     * time
+     */
+    static Result getScan() {
+        Result result = (Result) Request.current().args.get(ARG_NAME);
+        if (result == null) {
+            long timingStart = ServerTiming.start();
+            long scanStart = System.nanoTime();
+            Object event = PressEvents.begin(PressEvents.Type.SCAN);
+            ByteArrayOutputStream out = Response.current.get().out;
+            result = scanner.scan(out);
+            PressMetrics.responseScan.record(System.nanoTime() - scanStart);
+            if (event != null) {
+                int numRequests = 0;
+                for (List<String> files : result.requests.values()) {
+                    numRequests += files.size();
+                }
+                PressEvents.endScan(event, out.size(), numRequests);
+            }
+            ServerTiming.record(ServerTiming.Phase.SCAN, timingStart);
+            Request.current().args.put(ARG_NAME, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Scans the given output, and returns the names of the files requested
+     * and the offsets of the placeholders
+     */
+    public Result scan(ByteArrayOutputStream out) {
+        Scan scan = new Scan();
+        try {
+            // writeTo() passes the internal buffer of the output stream
+            // directly to the scan, without copying it
+            out.writeTo(scan);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+
+        Map<String, List<String>> requests = new HashMap<String, List<String>>();
+        for (int i = 0; i < starts.length; i++) {
+            requests.put(starts[i], scan.found.get(i));
+        }
+        return new Result(requests, scan.placeholderOffsets);
+    }
+
+    /**
+     * Replaces each of the given texts in the current response with the
+     * replacement at the same index. The response is copied once, however
+     * many texts are replaced. The url placeholders are found by the scan of
+     * the response, other texts are searched for.
+     */
+    public static void replaceInResponse(String[] texts, String[] replacements, int count) {
+        Response response = Response.current.get();
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        byte[][] replacementBytes = new byte[count][];
+        int numFound = 0;
+        int size = response.out.size();
+        for (int i = 0; i < count; i++) {
+            int offset = indexOf(response.out, texts[i]);
+            if (offset < 0) {
+                continue;
+            }
+
+            // Keep the replacements in the order they appear in the response
+            int j = numFound++;
+            while (j > 0 && offsets[j - 1] > offset) {
+                offsets[j] = offsets[j - 1];
+                lengths[j] = lengths[j - 1];
+                replacementBytes[j] = replacementBytes[j - 1];
+                j--;
+            }
+            offsets[j] = offset;
+            lengths[j] = BundleKey.getBytes(texts[i]).length;
+            replacementBytes[j] = BundleKey.getBytes(replacements[i]);
+            size += replacementBytes[j].length - lengths[j];
+        }
+
+        if (numFound == 0) {
+            return;
+        }
+
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream(size);
+        try {
+            response.out.writeTo(new Splice(spliced, offsets, lengths, replacementBytes,
+                    numFound));
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+        response.out = spliced;
+    }
+
+    /**
+     * Gets the offset of the given text in the given output, or -1 if it's
+     * not found
+     */
+    private static int indexOf(ByteArrayOutputStream out, String text) {
+        for (int i = 0; i < scanner.placeholders.length; i++) {
+            if (scanner.placeholders[i].equals(text)) {
+                return getScan().placeholderOffsets[i];
+            }
+        }
+
+        // A url that was output is only replaced if files were added after
+        // it was output, which is rare
+        ResponseScanner search = new ResponseScanner(new String[0], "", new String[] { text });
+        return search.scan(out).placeholderOffsets[0];
+    }
+
+    /**
+     * The state of a single scan
+     */
+    private class Scan extends OutputStream {
+        List<List<String>> found = new ArrayList<List<String>>(starts.length);
+        int[] placeholderOffsets = new int[placeholders.length];
+
+        // The number of bytes scanned by previous writes
+        int position = 0;
+
+        // The state of the automaton while looking for a start signature
+        int state = 0;
+
+        // The index of the start signature that was matched, while reading
+        // the file name up to the end signature, or -1
+        int matched = -1;
+        int nameStart;
+        int endMatched;
+
+        // The start of a file name that was split across writes
+        ByteArrayOutputStream pending;
+
+        Scan() {
+            for (int i = 0; i < starts.length; i++) {
+                found.add(new ArrayList<String>());
+            }
+            for (int i = 0; i < placeholders.length; i++) {
+                placeholderOffsets[i] = -1;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            int limit = offset + length;
+            nameStart = offset;
+            for (int i = offset; i < limit; i++) {
+                byte b = bytes[i];
+                if (matched < 0) {
+                    state = transitions[state][b & 0xff];
+                    int match = matches[state];
+                    if (match >= starts.length) {
+                        int placeholder = match - starts.length;
+                        if (placeholderOffsets[placeholder] < 0) {
+                            placeholderOffsets[placeholder] = position + i + 1 - offset
+                                    - placeholderLengths[placeholder];
+                        }
+                        state = 0;
+                    } else if (match >= 0) {
+                        matched = match;
+                        nameStart = i + 1;
+                        endMatched = 0;
+                        state = 0;
+                    }
+                    continue;
+                }
+
+                while (endMatched >= 0 && end[endMatched] != b) {
+                    endMatched = endFailure[endMatched];
+                }
+                endMatched++;
+                if (endMatched == end.length) {
+                    found.get(matched).add(getName(bytes, i + 1));
+                    matched = -1;
+                }
+            }
+
+            // The response is usually written in a single call, but keep the
+            // start of a file name that continues in the next write
+            if (matched >= 0) {
+                if (pending == null) {
+                    pending = new ByteArrayOutputStream();
+                }
+                pending.write(bytes, nameStart, limit - nameStart);
+            }
+            position += length;
+        }
+
+        /**
+         * Gets the file name that ends with the end signature just before the
+         * given position
+         */
+        private String getName(byte[] bytes, int endPosition) {
+            if (pending == null) {
+                return decode(bytes, nameStart, endPosition - end.length - nameStart);
+            }
+
+            pending.write(bytes, nameStart, endPosition - nameStart);
+            byte[] name = pending.toByteArray();
+            pending = null;
+            return decode(name, 0, name.length - end.length);
+        }
+    }
+
+    /**
+     * Copies the output written to it to another output, writing a
+     * replacement instead of each of the given ranges
+     */
+    private static class Splice extends OutputStream {
+        final ByteArrayOutputStream out;
+        final int[] offsets;
+        final int[] lengths;
+        final byte[][] replacements;
+        final int count;
+
+        // The offset of the next byte written, and the next range to replace
+        int position = 0;
+        int next = 0;
+
+        Splice(ByteArrayOutputStream out, int[] offsets, int[] lengths, byte[][] replacements,
+                int count) {
+            this.out = out;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.replacements = replacements;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            int limit = offset + length;
+            while (offset < limit) {
+                int copied;
+                if (next < count && position >= offsets[next]) {
+                    // Skip the replaced range, writing the replacement at its
+                    // start
+                    if (position == offsets[next]) {
+                        out.write(replacements[next], 0, replacements[next].length);
+                    }
+                    int rangeEnd = offsets[next] + lengths[next];
+                    copied = Math.min(limit - offset, rangeEnd - position);
+                    if (position + copied == rangeEnd) {
+                        next++;
+                    }
+                } else {
+                    copied = limit - offset;
+                    if (next < count) {
+                        copied = Math.min(copied, offsets[next] - position);
+                    }
+                    out.write(bytes, offset, copied);
+                }
+
+                offset += copied;
+                position += copied;
+            }
+        }
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package press;
+
+import play.mvc.Http.Header;
+import play.mvc.Http.Response;
+
+/**
+ * Times the work done by press for each request, and reports it in a
+ * Server-Timing response header so that it shows up in the browser's
+ * developer tools, eg:
+ *
+ * <pre>
+ * Server-Timing: press-glob;dur=0.052, press-add;dur=0.310, press-url;dur=0.094
+ * </pre>
+ *
+ * Timing is only done when the press.serverTiming option is on. Otherwise
+ * start() returns straight away and record() does nothing.
+ */
+public class ServerTiming {
+    static final String HEADER = "Server-Timing";
+
+    // Returned by start() when timing is off
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    public enum Phase {
+        // Rendering a page
+        GLOB("press-glob"), ADD("press-add"), URL("press-url"), SCAN("press-scan"),
+        CACHE_SET("press-cache-set"),
+
+        // Serving a compressed file
+        CACHE_GET("press-cache-get"), VALIDATE("press-validate"), GENERATE("press-generate"),
+        STREAM("press-stream");
+
+        final String metric;
+
+        Phase(String metric) {
+            this.metric = metric;
+        }
+    }
+
+    static final Phase[] PHASES = Phase.values();
+
+    /**
+     * Gets the start time of a phase, or NOT_TIMED if timing is off
+     */
+    public static long start() {
+        return PluginConfig.serverTiming ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Adds the time since the given start time to the given phase of the
+     * current request
+     */
+    public static void record(Phase phase, long start) {
+        if (start == NOT_TIMED) {
+            return;
+        }
+
+        RenderContext context = RenderContext.inAction();
+        if (context != null) {
+            context.timings[phase.ordinal()] += System.nanoTime() - start;
+            context.timed |= 1 << phase.ordinal();
+        }
+    }
+
+    /**
+     * Called when the content of a compressed file is about to be rendered.
+     * The time until the end of the action, when the response has been
+     * prepared, is recorded as the stream phase.
+     */
+    public static void startStream() {
+        RenderContext context = RenderContext.inAction();
+        if (context != null) {
+            context.streamStart = start();
+        }
+    }
+
+    /**
+     * Adds the Server-Timing header for the phases recorded for the given
+     * request to the current response. Any Server-Timing header already set
+     * by the application is kept.
+     */
+    static void addHeader(RenderContext context) {
+        if (context.streamStart != NOT_TIMED) {
+            long start = context.streamStart;
+            context.streamStart = NOT_TIMED;
+            context.timings[Phase.STREAM.ordinal()] += System.nanoTime() - start;
+            context.timed |= 1 << Phase.STREAM.ordinal();
+        }
+        if (context.timed == 0) {
+            return;
+        }
+
+        Response response = Response.current();
+        if (response == null) {
+            return;
+        }
+
+        StringBuilder value = new StringBuilder();
+        Header existing = response.headers.get(HEADER);
+        if (existing != null && existing.value() != null) {
+            value.append(existing.value());
+        }
+        for (Phase phase : PHASES) {
+            if ((context.timed & (1 << phase.ordinal())) == 0) {
+                continue;
+            }
+            if (value.length() > 0) {
+                value.append(", ");
+            }
+            value.append(phase.metric).append(";dur=");
+            appendMillis(value, context.timings[phase.ordinal()]);
+        }
+        response.setHeader(HEADER, value.toString());
+    }
+
+    /**
+     * Appends the given duration in milli-seconds with three decimals
+     */
+    private static void appendMillis(StringBuilder value, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        value.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            value.append('0');
+        }
+        if (fraction < 10) {
+            value.append('0');
+        }
+        value.append(fraction);
+    }
+}
@@ -0,0 +1,222 @@
+package press;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import play.Play;
+import press.Compressor.FileCompressor;
+import press.Compressor.FileInfo;
+
+/**
+ * Watches the JavaScript and CSS source directories for changes in the
+ * background. When a source file changes, the compressed files that include
+ * it are generated again straight away, so that the next request for them
+ * doesn't have to wait for compression.
+ * <p>
+ * The source directories are checked periodically by a daemon thread, as the
+ * file system notification API is not available in the Java versions
+ * supported by the module.
+ */
+public class SourceWatcher extends Thread {
+    private static SourceWatcher watcher;
+
+    private volatile boolean running = true;
+    private final List<Source> sources = new ArrayList<Source>();
+
+    static class Source {
+        FileCompressor compressor;
+        String srcDir;
+        String compressedDir;
+        String extension;
+
+        // The last modified date of each source file, keyed by its path
+        // relative to the source directory
+        Map<String, Long> lastModifieds;
+
+        Source(FileCompressor compressor, String srcDir, String compressedDir, String extension) {
+            this.compressor = compressor;
+            this.srcDir = srcDir;
+            this.compressedDir = compressedDir;
+            this.extension = extension;
+        }
+    }
+
+    SourceWatcher() {
+        super("press-source-watcher");
+        setDaemon(true);
+        sources.add(new Source(JSCompressor.jsFileCompressor, PluginConfig.js.srcDir,
+                PluginConfig.js.compressedDir, JSCompressor.EXTENSION));
+        sources.add(new Source(CSSCompressor.cssFileCompressor, PluginConfig.css.srcDir,
+                PluginConfig.css.compressedDir, CSSCompressor.EXTENSION));
+    }
+
+    /**
+     * Starts watching the source directories, if not already watching them
+     */
+    public static synchronized void startWatching() {
+        if (watcher != null) {
+            return;
+        }
+
+        watcher = new SourceWatcher();
+
+        // Take a first snapshot of the source files before returning, so that
+        // changes made from now on are detected
+        for (Source source : watcher.sources) {
+            source.lastModifieds = listFiles(source);
+        }
+        watcher.start();
+        PressLogger.trace("Watching source directories for changes");
+    }
+
+    /**
+     * Stops watching the source directories
+     */
+    public static synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.running = false;
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(PluginConfig.watchIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (Source source : sources) {
+                if (!running) {
+                    return;
+                }
+
+                try {
+                    checkForChanges(source);
+                } catch (Exception e) {
+                    PressLogger.warn("Could not check %s for changes: %s", source.srcDir, e);
+                }
+            }
+        }
+    }
+
+    private void checkForChanges(Source source) {
+        Map<String, Long> current = listFiles(source);
+
+        // Find the files that have been modified or deleted
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, Long> e : source.lastModifieds.entrySet()) {
+            Long lastModified = current.get(e.getKey());
+            if (lastModified == null || !lastModified.equals(e.getValue())) {
+                changed.add(e.getKey());
+            }
+        }
+        // If files have been added or deleted, the files matched by wildcards
+        // and the location of source files may have changed
+        if (!changed.isEmpty() || !source.lastModifieds.keySet().containsAll(current.keySet())) {
+            FileLookups.clear();
+        }
+        source.lastModifieds = current;
+
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        PressLogger.trace("Source files changed: %s", changed);
+        for (Map.Entry<File, String> e : findCompressedFiles(source, changed).entrySet()) {
+            if (!running) {
+                return;
+            }
+            regenerate(source, e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Finds the compressed files that include any of the given source files,
+     * and returns them with their list of component files. Fragments don't
+     * need to be invalidated, as they are keyed by the content of the source
+     * file.
+     */
+    private static Map<File, String> findCompressedFiles(Source source, List<String> changed) {
+        String dirPath = Play.getFile(source.compressedDir).getAbsolutePath() + File.separator;
+        Map<File, String> found = new HashMap<File, String>();
+        for (Map.Entry<String, BundleManifest.Entry> e : BundleManifest.entries.entrySet()) {
+            String path = e.getKey();
+            String components = e.getValue().components;
+            if (components == null || !path.startsWith(dirPath)
+                    || !path.endsWith(source.extension)) {
+                continue;
+            }
+
+            for (String component : components.split("\t")) {
+                if (component.length() > 1 && changed.contains(component.substring(1))) {
+                    found.put(new File(path), components);
+                    break;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static void regenerate(Source source, File file, String components) {
+        // Make sure the file isn't served from memory, and that its component
+        // files are checked on the next request
+        BundleCache.invalidate(file);
+        BundleIndex.remove(file);
+
+        // If a component file has been deleted, the compressed file can't be
+        // generated again
+        List<FileInfo> componentFiles = FileInfo.fromLine(components, source.srcDir);
+        if (componentFiles == null) {
+            return;
+        }
+
+        try {
+            PressLogger.trace("Regenerating compressed file %s", file.getName());
+            Compressor.regenerateCompressedFile(source.compressor, componentFiles,
+                    source.compressedDir, source.extension);
+        } catch (Exception e) {
+            PressLogger.warn("Could not regenerate compressed file %s: %s", file.getName(), e);
+        }
+    }
+
+    /**
+     * Gets the last modified date of each source file in the source
+     * directory, keyed by its path relative to the source directory
+     */
+    private static Map<String, Long> listFiles(Source source) {
+        Map<String, Long> files = new HashMap<String, Long>();
+        File dir = Play.getFile(source.srcDir);
+
+        // The output directory is usually inside the source directory, but
+        // the compressed files are not source files
+        File compressedDir = Play.getFile(source.compressedDir);
+        listFiles(dir, "", source.extension, compressedDir, files);
+        return files;
+    }
+
+    private static void listFiles(File dir, String prefix, String extension, File exclude,
+            Map<String, Long> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (!child.equals(exclude)) {
+                    listFiles(child, prefix + child.getName() + "/", extension, exclude, files);
+                }
+            } else if (child.getName().endsWith(extension)) {
+                files.put(prefix + child.getName(), child.lastModified());
+            }
+        }
+    }
+}
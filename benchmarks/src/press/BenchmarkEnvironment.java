@@ -0,0 +1,153 @@
+package press;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+
+import play.Play;
+import play.cache.Cache;
+import play.mvc.Http.Request;
+import play.mvc.Http.Response;
+import play.mvc.Router;
+
+/**
+ * Sets up just enough of a Play application for the benchmarks to run press
+ * outside of a server: an application directory with synthetic source files,
+ * the configuration, the cache, the press routes and a current request and
+ * response.
+ */
+public class BenchmarkEnvironment {
+    // The start of each line of synthetic JavaScript and CSS source
+    static final String JS_SOURCE = "function widget%d(element, options) {\n"
+            + "    var settings = { width: 100, height: 200, visible: true };\n"
+            + "    for (var name in options) {\n"
+            + "        settings[name] = options[name];\n" + "    }\n"
+            + "    if (settings.visible) {\n"
+            + "        element.style.width = settings.width + 'px';\n" + "    }\n"
+            + "    return settings;\n" + "}\n";
+    static final String CSS_SOURCE = ".widget-%d {\n" + "    margin: 0px 0px 0px 0px;\n"
+            + "    padding: 10px 20px 10px 20px;\n" + "    color: #ffffff;\n"
+            + "    background-color: #000000;\n" + "}\n";
+
+    File applicationPath;
+
+    /**
+     * Creates an application in a temporary directory, with the given press
+     * configuration on top of the production defaults
+     */
+    public static BenchmarkEnvironment create(Map<String, String> config) throws IOException {
+        BenchmarkEnvironment environment = new BenchmarkEnvironment();
+        File dir = File.createTempFile("press-benchmark", "");
+        dir.delete();
+        dir.mkdirs();
+        environment.applicationPath = dir;
+
+        // The defaults depend on the mode, so it must be set before the
+        // configuration is read
+        Play.mode = Play.Mode.PROD;
+        Play.applicationPath = dir;
+        Play.configuration = new Properties();
+        Play.configuration.setProperty("press.pregenerate", "false");
+        Play.configuration.setProperty("press.precompressed", "false");
+        Play.configuration.putAll(config);
+        PluginConfig.readConfig();
+
+        Cache.init();
+        Router.addRoute("GET", "/press/js/{key}", "press.Press.getCompressedJS");
+        Router.addRoute("GET", "/press/css/{key}", "press.Press.getCompressedCSS");
+
+        Play.getFile(PluginConfig.js.compressedDir).mkdirs();
+        Play.getFile(PluginConfig.css.compressedDir).mkdirs();
+        JSCompressor.loadJournal();
+        CSSCompressor.loadJournal();
+        return environment;
+    }
+
+    /**
+     * Writes the given number of synthetic JavaScript files of about the
+     * given size, and returns their names relative to the source directory
+     */
+    public List<String> createJSFiles(int count, int sizeKB) throws IOException {
+        return createFiles(PluginConfig.js.srcDir, JSCompressor.EXTENSION, JS_SOURCE, count,
+                sizeKB);
+    }
+
+    /**
+     * Writes the given number of synthetic CSS files of about the given size,
+     * and returns their names relative to the source directory
+     */
+    public List<String> createCSSFiles(int count, int sizeKB) throws IOException {
+        return createFiles(PluginConfig.css.srcDir, CSSCompressor.EXTENSION, CSS_SOURCE, count,
+                sizeKB);
+    }
+
+    private List<String> createFiles(String srcDir, String extension, String source, int count,
+            int sizeKB) throws IOException {
+        File dir = Play.getFile(srcDir + "bench");
+        dir.mkdirs();
+
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String name = "bench/file-" + i + extension;
+            Writer out = new FileWriter(new File(dir, "file-" + i + extension));
+            try {
+                out.write(getSource(source, sizeKB));
+            } finally {
+                out.close();
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Gets synthetic source of about the given size
+     */
+    public static String getSource(String source, int sizeKB) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; content.length() < sizeKB * 1024; i++) {
+            content.append(String.format(source, i));
+        }
+        return content.toString();
+    }
+
+    /**
+     * Sets up a new current request and response, as at the start of an
+     * action
+     */
+    public static Response startRequest() {
+        Request request = Request.createRequest(null, "GET", "/", "", null, null, "/",
+                "localhost", false, 80, "localhost", false, null, null);
+        Request.current.set(request);
+
+        Response response = new Response();
+        response.out = new ByteArrayOutputStream(32 * 1024);
+        Response.current.set(response);
+        return response;
+    }
+
+    public void destroy() throws IOException {
+        Compressor.shutdownCompressionExecutor();
+        FileUtils.deleteDirectory(applicationPath);
+
+        // Forget what was recorded about the application, so that another
+        // one can be created in the same JVM
+        Cache.clear();
+        FileLookups.clear();
+        BundleRegistry.registrations.clear();
+        BundleRegistry.pages.clear();
+        BundleIndex.clear();
+        BundleCache.clear();
+        BundleManifest.entries.clear();
+        BundleManifest.journals.clear();
+        RenderPlans.clear();
+    }
+}
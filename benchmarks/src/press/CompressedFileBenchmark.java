@@ -0,0 +1,89 @@
+package press;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import play.vfs.VirtualFile;
+import press.Compressor.FileInfo;
+
+/**
+ * Measures serving a compressed file the way the compressed file actions do,
+ * with Compressor.getCompressedFileAsync(). The benchmark thread waits for the
+ * promise where the action would suspend the request:
+ * <ul>
+ * <li>cold: the compressed file and the compressed fragments are generated
+ * on the generation pool for each request</li>
+ * <li>warm: the compressed file is held in memory and the cache is always
+ * used</li>
+ * <li>revalidate: with the caching strategy Change, the header of the
+ * compressed file and the component files are checked on each request, as
+ * in haveComponentFilesChanged()</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+public class CompressedFileBenchmark {
+    @Param({ "cold", "warm", "revalidate" })
+    String scenario;
+
+    @Param({ "10" })
+    int files;
+
+    @Param({ "4" })
+    int fileKB;
+
+    BenchmarkEnvironment environment;
+    String key;
+
+    @Setup
+    public void setUp() throws IOException {
+        Map<String, String> config = new HashMap<String, String>();
+        if (scenario.equals("revalidate")) {
+            config.put("press.cache", "Change");
+            config.put("press.cache.revalidateMillis", "0");
+        } else {
+            config.put("press.cache", "Always");
+        }
+        if (scenario.equals("cold")) {
+            config.put("press.cache.fragments", "false");
+        }
+        environment = BenchmarkEnvironment.create(config);
+
+        List<FileInfo> componentFiles = new ArrayList<FileInfo>();
+        for (String name : environment.createJSFiles(files, fileKB)) {
+            componentFiles.add(new FileInfo(name, true, JSCompressor.checkJSFileExists(name)));
+        }
+        key = BundleRegistry.register(componentFiles, JSCompressor.EXTENSION);
+
+        // Generate the file once, so that the warm scenarios only measure
+        // serving it
+        JSCompressor.getCompressedFile(key);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        if (scenario.equals("cold")) {
+            JSCompressor.clearCache();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        environment.destroy();
+    }
+
+    @Benchmark
+    public VirtualFile getCompressedFile() {
+        return Compressor.getGenerated(JSCompressor.getCompressedFileAsync(key));
+    }
+}
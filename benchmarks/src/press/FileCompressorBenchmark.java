@@ -0,0 +1,71 @@
+package press;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import press.Compressor.FileCompressor;
+
+/**
+ * Measures the throughput of the JavaScript and CSS file compressors. Along
+ * with the number of files compressed per second, the number of KB of source
+ * compressed per second is reported as the "kilobytes" counter.
+ */
+@State(Scope.Thread)
+public class FileCompressorBenchmark {
+    @Param({ "js", "css" })
+    String type;
+
+    @Param({ "1", "10", "100" })
+    int sizeKB;
+
+    BenchmarkEnvironment environment;
+    FileCompressor compressor;
+    String source;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long kilobytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            kilobytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.create(new HashMap<String, String>());
+        if (type.equals("js")) {
+            compressor = JSCompressor.jsFileCompressor;
+            source = BenchmarkEnvironment.getSource(BenchmarkEnvironment.JS_SOURCE, sizeKB);
+        } else {
+            compressor = CSSCompressor.cssFileCompressor;
+            source = BenchmarkEnvironment.getSource(BenchmarkEnvironment.CSS_SOURCE, sizeKB);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        environment.destroy();
+    }
+
+    @Benchmark
+    public int compress(Counters counters) throws Exception {
+        StringWriter out = new StringWriter(source.length());
+        compressor.compress("bench/file." + type, new StringReader(source), out);
+        counters.kilobytes += sizeKB;
+        return out.getBuffer().length();
+    }
+}
@@ -0,0 +1,47 @@
+package press;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the press work done while rendering a page: adding the files with
+ * Plugin.addJS(), outputting the url with Plugin.compressedJSUrl() and saving
+ * the list of files with Plugin.afterActionInvocation(). When the render
+ * order isn't known, the response is scanned for the order of the files.
+ */
+@State(Scope.Thread)
+public class RenderBenchmark {
+    @Param({ "5", "20" })
+    int files;
+
+    @Param({ "true", "false" })
+    boolean renderOrderKnown;
+
+    // The size of the page body written after the head, in KB
+    @Param({ "20" })
+    int bodyKB;
+
+    RenderScenario scenario;
+
+    @Setup
+    public void setUp() throws IOException {
+        scenario = new RenderScenario(new HashMap<String, String>(), files, bodyKB);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        scenario.destroy();
+    }
+
+    @Benchmark
+    public int render() throws IOException {
+        return scenario.render(renderOrderKnown);
+    }
+}
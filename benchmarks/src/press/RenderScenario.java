@@ -0,0 +1,76 @@
+package press;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import play.mvc.Http.Request;
+import play.mvc.Http.Response;
+
+/**
+ * Renders the press part of a page outside of a server: adds the files with
+ * Plugin.addJS(), outputs the url with Plugin.compressedJSUrl(), writes the
+ * body of the page and saves the list of files with
+ * Plugin.afterActionInvocation(). Used by the render benchmark and the tests.
+ */
+public class RenderScenario {
+    BenchmarkEnvironment environment;
+    List<String> names;
+    Plugin plugin = new Plugin();
+    Object templateOutput = new Object();
+    byte[] body;
+    Request request;
+    Response response;
+
+    /**
+     * Creates an application with the given press configuration, the given
+     * number of JavaScript files and a page body of about the given size
+     */
+    public RenderScenario(Map<String, String> config, int files, int bodyKB) throws IOException {
+        environment = BenchmarkEnvironment.create(config);
+        names = environment.createJSFiles(files, 4);
+        body = BenchmarkEnvironment.getSource("<div class=\"item-%d\"><p>Item</p></div>\n", bodyKB)
+                .getBytes("UTF-8");
+        response = BenchmarkEnvironment.startRequest();
+        request = Request.current();
+    }
+
+    public void destroy() throws IOException {
+        environment.destroy();
+    }
+
+    /**
+     * Renders the page with all the files
+     *
+     * @param renderOrderKnown whether the files are added to the same
+     *            template output, so that their order in the page is known
+     * @return the size of the response
+     */
+    public int render(boolean renderOrderKnown) throws IOException {
+        return render(names, renderOrderKnown);
+    }
+
+    /**
+     * Renders the page with the given files
+     */
+    public int render(List<String> fileNames, boolean renderOrderKnown) throws IOException {
+        request.args.clear();
+        response.out.reset();
+        plugin.beforeActionInvocation(null);
+
+        // Without the template output, press can't tell whether the tags
+        // were executed in the order they appear in the page
+        Object output = renderOrderKnown ? templateOutput : null;
+        StringBuilder head = new StringBuilder("<html><head>\n");
+        for (String name : fileNames) {
+            head.append(Plugin.addJS(name, true, output));
+        }
+        head.append("<script src=\"").append(Plugin.compressedJSUrl()).append(
+                "\"></script>\n</head>\n");
+
+        response.out.write(head.toString().getBytes("UTF-8"));
+        response.out.write(body);
+        plugin.afterActionInvocation();
+        return response.out.size();
+    }
+}
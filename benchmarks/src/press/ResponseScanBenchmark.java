@@ -0,0 +1,49 @@
+package press;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the scan of a response for the file compress requests output by
+ * the press tags, with the requests spread through the page
+ */
+@State(Scope.Thread)
+public class ResponseScanBenchmark {
+    @Param({ "10", "100", "1000" })
+    int responseKB;
+
+    @Param({ "20" })
+    int files;
+
+    ByteArrayOutputStream response;
+
+    @Setup
+    public void setUp() throws IOException {
+        String page = BenchmarkEnvironment.getSource(
+                "<div class=\"item-%d\"><p>Item <!-- comment --></p></div>\n", responseKB);
+
+        // Spread the requests evenly through the page
+        StringBuilder content = new StringBuilder();
+        int chunk = page.length() / files;
+        for (int i = 0; i < files; i++) {
+            String start = i % 2 == 0 ? JSCompressor.REQUEST_START : CSSCompressor.REQUEST_START;
+            content.append(start).append("bench/file-").append(i).append("[0]").append(
+                    Compressor.REQUEST_END).append('\n');
+            content.append(page, i * chunk, i == files - 1 ? page.length() : (i + 1) * chunk);
+        }
+
+        response = new ByteArrayOutputStream();
+        response.write(content.toString().getBytes("UTF-8"));
+    }
+
+    @Benchmark
+    public ResponseScanner.Result scan() {
+        return ResponseScanner.scanner.scan(response);
+    }
+}
@@ -1,10 +1,16 @@
 # Here you can create play commands that are specific to the module, and extend existing commands
 
+import os, subprocess, sys
+
 MODULE = 'press'
 
 # Commands that are specific to your module
 
-COMMANDS = ['press:hello']
+COMMANDS = ['press:hello', 'press:precompress']
+
+HELP = {
+    'press:precompress': 'Generate the compressed JavaScript and CSS files, and their manifest, ahead of deployment'
+}
 
 def execute(**kargs):
     command = kargs.get("command")
@@ -15,6 +21,21 @@ def execute(**kargs):
     if command == "press:hello":
         print "~ Hello"
 
+    if command == "press:precompress":
+        print "~ Generating compressed JavaScript and CSS files"
+        print "~"
+        java_cmd = app.java_cmd([], None, "press.Precompressor", args)
+        try:
+            result = subprocess.call(java_cmd, env=os.environ)
+        except OSError:
+            print "~ Could not execute the java executable, please make sure the JAVA_HOME environment variable is set properly (the java executable should reside at JAVA_HOME/bin/java). "
+            sys.exit(-1)
+        if result != 0:
+            sys.exit(result)
+        print "~"
+        print "~ Done. Start the application with press.precompressed=true to use the compressed files"
+        print "~"
+
 
 # This will be executed before any command (new, run...)
 def before(**kargs):
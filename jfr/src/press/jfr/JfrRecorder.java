@@ -0,0 +1,166 @@
+package press.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records the work done by press as Java Flight Recorder events. It is
+ * called by press.PressEvents when press.jfr is true.
+ * <p>
+ * This class is built separately from the module with "ant jfr", as it
+ * requires Java 11. It may be loaded by a different class loader from the
+ * application classes, so it doesn't refer to any of them: the type of event
+ * is passed as the name of a press.PressEvents.Type.
+ */
+public class JfrRecorder {
+    static final EventType GENERATION = EventType.getEventType(GenerationEvent.class);
+    static final EventType FRAGMENT = EventType.getEventType(FragmentEvent.class);
+    static final EventType LOCK_WAIT = EventType.getEventType(LockWaitEvent.class);
+    static final EventType SCAN = EventType.getEventType(ScanEvent.class);
+    static final EventType VALIDATION = EventType.getEventType(ValidationEvent.class);
+
+    @Name("press.BundleGeneration")
+    @Label("Bundle Generation")
+    @Description("Generation of a compressed file from its component files")
+    @Category("Press")
+    static class GenerationEvent extends Event {
+        @Label("Bundle ID")
+        String bundleId;
+
+        @Label("Components")
+        int components;
+
+        @Label("Input Size")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Output Size")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("press.FragmentCompression")
+    @Label("Fragment Compression")
+    @Description("Compression of a single component file, or its retrieval from the fragment cache")
+    @Category("Press")
+    static class FragmentEvent extends Event {
+        @Label("File")
+        String fileName;
+
+        @Label("Cached")
+        boolean cached;
+
+        @Label("Input Size")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Output Size")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("press.LockWait")
+    @Label("Lock Wait")
+    @Description("Wait for another process to finish generating a compressed file")
+    @Category("Press")
+    static class LockWaitEvent extends Event {
+        @Label("File")
+        String fileName;
+    }
+
+    @Name("press.ResponseScan")
+    @Label("Response Scan")
+    @Description("Scan of a response for the files requested by the press tags")
+    @Category("Press")
+    static class ScanEvent extends Event {
+        @Label("Response Size")
+        @DataAmount
+        int responseBytes;
+
+        @Label("Requests")
+        int requests;
+    }
+
+    @Name("press.CacheValidation")
+    @Label("Cache Validation")
+    @Description("Check of whether the component files of a compressed file have changed")
+    @Category("Press")
+    static class ValidationEvent extends Event {
+        @Label("File")
+        String fileName;
+
+        @Label("Changed")
+        boolean changed;
+    }
+
+    /**
+     * Starts an event of the given type, or returns null if events of that
+     * type are not being recorded
+     */
+    public Object begin(String type) {
+        Event event;
+        if (type.equals("GENERATION")) {
+            event = GENERATION.isEnabled() ? new GenerationEvent() : null;
+        } else if (type.equals("FRAGMENT")) {
+            event = FRAGMENT.isEnabled() ? new FragmentEvent() : null;
+        } else if (type.equals("LOCK_WAIT")) {
+            event = LOCK_WAIT.isEnabled() ? new LockWaitEvent() : null;
+        } else if (type.equals("SCAN")) {
+            event = SCAN.isEnabled() ? new ScanEvent() : null;
+        } else if (type.equals("VALIDATION")) {
+            event = VALIDATION.isEnabled() ? new ValidationEvent() : null;
+        } else {
+            return null;
+        }
+
+        if (event != null) {
+            event.begin();
+        }
+        return event;
+    }
+
+    public void endGeneration(Object event, String bundleId, int components, long bytesIn,
+            long bytesOut) {
+        GenerationEvent e = (GenerationEvent) event;
+        e.bundleId = bundleId;
+        e.components = components;
+        e.bytesIn = bytesIn;
+        e.bytesOut = bytesOut;
+        e.commit();
+    }
+
+    public void endFragment(Object event, String fileName, boolean cached, long bytesIn,
+            long bytesOut) {
+        FragmentEvent e = (FragmentEvent) event;
+        e.fileName = fileName;
+        e.cached = cached;
+        e.bytesIn = bytesIn;
+        e.bytesOut = bytesOut;
+        e.commit();
+    }
+
+    public void endLockWait(Object event, String fileName) {
+        LockWaitEvent e = (LockWaitEvent) event;
+        e.fileName = fileName;
+        e.commit();
+    }
+
+    public void endScan(Object event, int responseBytes, int requests) {
+        ScanEvent e = (ScanEvent) event;
+        e.responseBytes = responseBytes;
+        e.requests = requests;
+        e.commit();
+    }
+
+    public void endValidation(Object event, String fileName, boolean changed) {
+        ValidationEvent e = (ValidationEvent) event;
+        e.fileName = fileName;
+        e.changed = changed;
+        e.commit();
+    }
+}
@@ -0,0 +1,103 @@
+package press;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that the press work done while rendering a page stays within an
+ * allocation budget, by counting the bytes allocated by the current thread
+ * while running the render sequence of RenderScenario. The budgets include
+ * the work done by the scenario itself to build the page.
+ */
+public class AllocationTest {
+    // The renders run before measuring, so that the render plans and file
+    // lookups are cached and the code is compiled
+    static final int WARMUP_RENDERS = 20000;
+    static final int MEASURED_RENDERS = 10000;
+
+    // The budget for each render in bytes, and the extra budget for each file
+    // added to the page
+    static final int BUDGET = 6 * 1024;
+    static final int BUDGET_PER_FILE = 512;
+
+    // When the render order isn't known, the response is scanned for the
+    // order of the files. The url of the page key is output, so the response
+    // is never copied and the budget doesn't depend on its size.
+    static final int UNKNOWN_ORDER_BUDGET = 8 * 1024;
+    static final int UNKNOWN_ORDER_BUDGET_PER_FILE = 1024;
+
+    static final int BODY_KB = 20;
+
+    RenderScenario scenario;
+
+    @After
+    public void tearDown() throws Exception {
+        if (scenario != null) {
+            scenario.destroy();
+        }
+    }
+
+    @Test
+    public void knownOrderWithFewFiles() throws Exception {
+        check(5, true);
+    }
+
+    @Test
+    public void knownOrderWithManyFiles() throws Exception {
+        check(20, true);
+    }
+
+    @Test
+    public void unknownOrderWithFewFiles() throws Exception {
+        check(5, false);
+    }
+
+    @Test
+    public void unknownOrderWithManyFiles() throws Exception {
+        check(20, false);
+    }
+
+    private void check(int files, boolean renderOrderKnown) throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("The JVM can't count the bytes allocated by a thread");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        scenario = new RenderScenario(new HashMap<String, String>(), files, BODY_KB);
+        long allocated = measure(threads, renderOrderKnown);
+        long budget = renderOrderKnown ? BUDGET + BUDGET_PER_FILE * files
+                : UNKNOWN_ORDER_BUDGET + UNKNOWN_ORDER_BUDGET_PER_FILE * files;
+
+        String msg = String.format("%d files, render order %s: %d bytes per render (budget %d)",
+                files, renderOrderKnown ? "known" : "unknown", allocated, budget);
+        System.out.println(msg);
+        assertTrue(msg, allocated <= budget);
+    }
+
+    /**
+     * Gets the average number of bytes allocated by each render
+     */
+    private long measure(ThreadMXBean threads, boolean renderOrderKnown) throws Exception {
+        for (int i = 0; i < WARMUP_RENDERS; i++) {
+            scenario.render(renderOrderKnown);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_RENDERS; i++) {
+            scenario.render(renderOrderKnown);
+        }
+        long after = threads.getThreadAllocatedBytes(threadId);
+
+        return (after - before) / MEASURED_RENDERS;
+    }
+}
@@ -0,0 +1,116 @@
+package press;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.vfs.VirtualFile;
+import press.Compressor.FileInfo;
+
+public class GenerationTest {
+    static final int THREADS = 8;
+    static final int ROUNDS = 20;
+
+    // The requests made by each thread in a round. They are made one after
+    // the other, so that some arrive while the file is being generated and
+    // some just after it has been.
+    static final int REQUESTS = 20;
+
+    BenchmarkEnvironment environment;
+    List<FileInfo> componentFiles;
+    String key;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("press.cache", "Always");
+        environment = BenchmarkEnvironment.create(config);
+
+        componentFiles = new ArrayList<FileInfo>();
+        for (String name : environment.createJSFiles(10, 4)) {
+            componentFiles.add(new FileInfo(name, true, JSCompressor.checkJSFileExists(name)));
+        }
+        key = BundleRegistry.register(componentFiles, JSCompressor.EXTENSION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        environment.destroy();
+    }
+
+    /**
+     * A request that found the file missing, but only got to generate it once
+     * another generation had finished, uses the file that was generated
+     */
+    @Test
+    public void lateGenerationUsesTheGeneratedFile() throws Exception {
+        VirtualFile file = JSCompressor.getCompressedFile(key);
+        long generations = PressMetrics.jsGeneration.getCount();
+
+        Compressor.Generation late = createGeneration(file, false);
+        late.run();
+        late.get();
+        assertEquals(0, PressMetrics.jsGeneration.getCount() - generations);
+
+        // Regenerating the file always writes it again
+        Compressor.Generation regeneration = createGeneration(file, true);
+        regeneration.run();
+        regeneration.get();
+        assertEquals(1, PressMetrics.jsGeneration.getCount() - generations);
+    }
+
+    @Test
+    public void concurrentRequestsGenerateTheFileOnce() throws Exception {
+        ExecutorService requests = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                JSCompressor.clearCache();
+                long generations = PressMetrics.jsGeneration.getCount();
+
+                final CyclicBarrier start = new CyclicBarrier(THREADS);
+                List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                for (int i = 0; i < THREADS; i++) {
+                    results.add(requests.submit(new Callable<Boolean>() {
+                        public Boolean call() throws Exception {
+                            start.await();
+                            boolean found = true;
+                            for (int j = 0; j < REQUESTS; j++) {
+                                VirtualFile file = JSCompressor.getCompressedFile(key);
+                                found &= file != null && file.exists();
+                            }
+                            return found;
+                        }
+                    }));
+                }
+
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+                assertEquals("Generations in round " + round, 1,
+                        PressMetrics.jsGeneration.getCount() - generations);
+            }
+        } finally {
+            requests.shutdownNow();
+        }
+    }
+
+    private Compressor.Generation createGeneration(VirtualFile file, boolean regenerate) {
+        FragmentCache fragments = new FragmentCache(PluginConfig.js.compressedDir,
+                JSCompressor.EXTENSION);
+        return new Compressor.Generation(JSCompressor.jsFileCompressor, componentFiles, file,
+                fragments, JSCompressor.EXTENSION, regenerate);
+    }
+}
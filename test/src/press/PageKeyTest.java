@@ -0,0 +1,82 @@
+package press;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import press.Compressor.FileInfo;
+
+public class PageKeyTest {
+    RenderScenario scenario;
+
+    @Before
+    public void setUp() throws Exception {
+        scenario = new RenderScenario(new HashMap<String, String>(), 5, 20);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scenario.destroy();
+    }
+
+    /**
+     * When the order of the files isn't known, the url of the page key is
+     * output and bound to the list of files, without copying the response
+     */
+    @Test
+    public void unknownOrderUsesThePageKey() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = scenario.response.out;
+            scenario.render(false);
+            assertSame(out, scenario.response.out);
+
+            String pageKey = getPageKey();
+            assertTrue(getResponse().contains(pageKey));
+            assertEquals(scenario.names, getFileNames(BundleRegistry.get(pageKey)));
+        }
+    }
+
+    /**
+     * A page that is rendered with a different list of files than the list
+     * its key is bound to uses the key of the list instead
+     */
+    @Test
+    public void differentFilesUseTheKeyOfTheList() throws Exception {
+        scenario.render(false);
+        String pageKey = getPageKey();
+        assertTrue(getResponse().contains(pageKey));
+
+        List<String> otherNames = scenario.names.subList(1, scenario.names.size());
+        scenario.render(otherNames, false);
+        assertFalse(getResponse().contains(pageKey));
+        assertEquals(scenario.names, getFileNames(BundleRegistry.get(pageKey)));
+
+        List<FileInfo> otherFiles = new ArrayList<FileInfo>();
+        for (String name : otherNames) {
+            otherFiles.add(new FileInfo(name, true, null));
+        }
+        assertTrue(getResponse().contains(BundleRegistry.getId(otherFiles)));
+    }
+
+    private String getPageKey() {
+        return Hashes.murmur3(BundleKey.getBytes(scenario.request.path)) + JSCompressor.EXTENSION;
+    }
+
+    private String getResponse() throws Exception {
+        return scenario.response.out.toString("UTF-8");
+    }
+
+    private static List<String> getFileNames(List<FileInfo> componentFiles) {
+        return new ArrayList<String>(FileInfo.getFileNames(componentFiles));
+    }
+}
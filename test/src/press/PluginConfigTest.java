@@ -0,0 +1,35 @@
+package press;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PluginConfigTest {
+    BenchmarkEnvironment environment;
+
+    @After
+    public void tearDown() throws Exception {
+        if (environment != null) {
+            environment.destroy();
+        }
+    }
+
+    /**
+     * Generation pool sizes below 1 are raised to 1, so that the pool can be
+     * created
+     */
+    @Test
+    public void generationPoolSizesAreAtLeastOne() throws Exception {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("press.generation.threads", "0");
+        config.put("press.generation.queueSize", "-1");
+        environment = BenchmarkEnvironment.create(config);
+
+        assertEquals(1, PluginConfig.generationThreads);
+        assertEquals(1, PluginConfig.generationQueueSize);
+    }
+}
@@ -0,0 +1,57 @@
+package press;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.cache.Cache;
+
+public class StatelessKeyTest {
+    RenderScenario scenario;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("press.key.stateless", "true");
+        scenario = new RenderScenario(config, 5, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scenario.destroy();
+    }
+
+    /**
+     * A page rendered again with the same files uses the render plan, and
+     * the list of files contained in the stateless key is not registered
+     */
+    @Test
+    public void renderPlanDoesNotRegisterStatelessKey() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            scenario.render(true);
+        }
+
+        String response = scenario.response.out.toString("UTF-8");
+        String key = getKey(response);
+        assertTrue(BundleKey.isBundleKey(key));
+        assertEquals(1, RenderPlans.plans.size());
+        assertTrue(BundleRegistry.registrations.isEmpty());
+        assertNull(Cache.get(key));
+    }
+
+    /**
+     * Gets the key in the url of the compressed file in the given response
+     */
+    private static String getKey(String response) {
+        int start = response.indexOf("/press/js/") + "/press/js/".length();
+        int end = response.indexOf(JSCompressor.EXTENSION, start) + JSCompressor.EXTENSION.length();
+        return response.substring(start, end);
+    }
+}